@@ -0,0 +1,183 @@
+package dileepshah.dev.os.concurrency;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures gets and puts on the KV stores from several threads at once, against {@link ConcurrentHashMap} as the
+ * baseline.
+ * <p>
+ * The store is filled with every key before the measurement, so gets always hit and puts always replace. Each thread
+ * works through its own sequence of keys and read/write choices, drawn up front, so that neither random numbers nor
+ * boxing are measured. Throughput is reported in operations per microsecond, and the sampled latency of single
+ * operations with its percentiles in microseconds.
+ * <p>
+ * The thread count is set on the command line, e.g. {@code -t 1} and {@code -t 16} to see how a store scales. The
+ * segment count only applies to {@link ImprovedSimpleConcurrentKVStore}, so it defaults to a single value and the other
+ * stores don't run the same benchmark once per count; sweep it for that store alone, e.g.
+ * {@code -p store=improved -p segments=4,16,64}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class KVStoreBenchmark {
+    // Operations drawn per thread; a power of two, so the replay wraps around with a mask
+    private static final int OPERATIONS = 1 << 16;
+
+    @Param({"simple", "improved", "casbin", "chm"})
+    public String store;
+
+    @Param({"50", "90", "100"})
+    public int readPercent;
+
+    @Param({"uniform", "zipfian"})
+    public String distribution;
+
+    // Only read by the improved store
+    @Param({"16"})
+    public int segments;
+
+    @Param({"1024", "1048576"})
+    public int keys;
+
+    private Store kv;
+    private Integer[] keySpace;
+
+    /**
+     * The operations under test, so every store is called the same way.
+     */
+    private interface Store {
+        Integer get(Integer key);
+
+        Integer put(Integer key, Integer value);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.kv = createStore();
+        this.keySpace = new Integer[this.keys];
+        for (int i = 0; i < this.keys; i++) {
+            this.keySpace[i] = i;
+            this.kv.put(this.keySpace[i], this.keySpace[i]);
+        }
+    }
+
+    private Store createStore() {
+        switch (this.store) {
+            case "simple": {
+                SimpleConcurrentKVStore<Integer, Integer> simple = new SimpleConcurrentKVStore<>();
+                return new Store() {
+                    @Override
+                    public Integer get(Integer key) {
+                        return simple.getOrNull(key);
+                    }
+
+                    @Override
+                    public Integer put(Integer key, Integer value) {
+                        return simple.put(key, value);
+                    }
+                };
+            }
+            case "improved": {
+                ImprovedSimpleConcurrentKVStore<Integer, Integer> improved =
+                        new ImprovedSimpleConcurrentKVStore<>(this.segments);
+                return new Store() {
+                    @Override
+                    public Integer get(Integer key) {
+                        return improved.getOrNull(key);
+                    }
+
+                    @Override
+                    public Integer put(Integer key, Integer value) {
+                        return improved.put(key, value);
+                    }
+                };
+            }
+            case "casbin": {
+                CasBinConcurrentKVStore<Integer, Integer> casBin = new CasBinConcurrentKVStore<>();
+                return new Store() {
+                    @Override
+                    public Integer get(Integer key) {
+                        return casBin.getOrNull(key);
+                    }
+
+                    @Override
+                    public Integer put(Integer key, Integer value) {
+                        return casBin.put(key, value);
+                    }
+                };
+            }
+            case "chm": {
+                ConcurrentHashMap<Integer, Integer> map = new ConcurrentHashMap<>();
+                return new Store() {
+                    @Override
+                    public Integer get(Integer key) {
+                        return map.get(key);
+                    }
+
+                    @Override
+                    public Integer put(Integer key, Integer value) {
+                        return map.put(key, value);
+                    }
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown store: " + this.store);
+        }
+    }
+
+    /**
+     * The keys and read/write choices of one thread, replayed in a loop.
+     */
+    @State(Scope.Thread)
+    public static class Operations {
+        private int[] keyIndexes;
+        private boolean[] reads;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(KVStoreBenchmark benchmark, ThreadParams thread) {
+            long seed = 0x9E3779B97F4A7C15L * (thread.getThreadIndex() + 1);
+            this.keyIndexes = KeyDistribution.sample(benchmark.distribution, benchmark.keys, OPERATIONS, seed);
+            this.reads = new boolean[OPERATIONS];
+            SplittableRandom random = new SplittableRandom(~seed);
+            for (int i = 0; i < OPERATIONS; i++) {
+                this.reads[i] = random.nextInt(100) < benchmark.readPercent;
+            }
+        }
+
+        int next() {
+            return this.next = (this.next + 1) & (OPERATIONS - 1);
+        }
+    }
+
+    @Benchmark
+    public Integer readWrite(Operations operations) {
+        int i = operations.next();
+        Integer key = this.keySpace[operations.keyIndexes[i]];
+        if (operations.reads[i]) {
+            return this.kv.get(key);
+        }
+        return this.kv.put(key, key);
+    }
+}
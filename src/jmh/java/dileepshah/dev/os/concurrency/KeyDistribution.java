@@ -0,0 +1,70 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.SplittableRandom;
+
+/**
+ * Draws the key indexes a benchmark thread works through, so the random numbers are generated before the measurement
+ * rather than inside it.
+ * <p>
+ * Zipfian keys follow the generator of Gray et al., "Quickly Generating Billion-Record Synthetic Databases", with the
+ * skew of 0.99 that YCSB uses: index 0 is the hottest key, and with a million keys about 1% of them get two thirds
+ * of the requests.
+ */
+final class KeyDistribution {
+    static final double ZIPFIAN_SKEW = 0.99;
+
+    private KeyDistribution() {
+    }
+
+    /**
+     * @param distribution {@code uniform} or {@code zipfian}
+     * @param keys         The number of distinct keys; the indexes are in [0, keys).
+     * @param samples      How many indexes to draw.
+     * @param seed         Seeds the draw, so runs are repeatable.
+     */
+    static int[] sample(String distribution, int keys, int samples, long seed) {
+        if (keys <= 0 || samples <= 0) {
+            throw new IllegalArgumentException("Keys and samples must be positive");
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] indexes = new int[samples];
+        switch (distribution) {
+            case "uniform":
+                for (int i = 0; i < samples; i++) {
+                    indexes[i] = random.nextInt(keys);
+                }
+                return indexes;
+            case "zipfian": {
+                double theta = ZIPFIAN_SKEW;
+                double zetaN = zeta(keys, theta);
+                double alpha = 1 / (1 - theta);
+                double eta = (1 - Math.pow(2.0 / keys, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+                double secondThreshold = 1 + Math.pow(0.5, theta);
+                for (int i = 0; i < samples; i++) {
+                    double u = random.nextDouble();
+                    double uz = u * zetaN;
+                    int index;
+                    if (uz < 1) {
+                        index = 0;
+                    } else if (uz < secondThreshold) {
+                        index = 1;
+                    } else {
+                        index = (int) (keys * Math.pow(eta * u - eta + 1, alpha));
+                    }
+                    indexes[i] = Math.min(index, keys - 1);
+                }
+                return indexes;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown key distribution: " + distribution);
+        }
+    }
+
+    private static double zeta(int n, double theta) {
+        double sum = 0;
+        for (int i = 1; i <= n; i++) {
+            sum += 1 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
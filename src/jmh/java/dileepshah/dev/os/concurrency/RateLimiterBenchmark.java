@@ -0,0 +1,153 @@
+package dileepshah.dev.os.concurrency;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast the rate limiting strategies decide on requests from several threads at once, each criterion
+ * limited through a {@link SimpleCriterionBasedConcurrentRateLimiter}.
+ * <p>
+ * In the hot-key scenario all threads request access for the same criterion, so they contend on one strategy: most
+ * requests are turned down, and what is measured is how the strategy holds up under contention. In the many-key
+ * scenario the threads spread over {@code keys} criteria, so the lookup of the criterion's limiter and cache misses
+ * weigh more, and a good share of the requests are admitted.
+ * <p>
+ * The baseline is a {@link Semaphore} per criterion in a {@link ConcurrentHashMap}, acquired and released right away:
+ * a JDK admission check that keeps no time, so the floor the strategies are measured against. Throughput is reported in
+ * decisions per microsecond, and the sampled latency of single decisions with its percentiles in microseconds. The
+ * thread count is set on the command line, e.g. {@code -t 16}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class RateLimiterBenchmark {
+    private static final int REQUESTS = 1 << 16;
+
+    @Param({"slidingLog", "slidingWindowCounter", "gcra", "tokenBucket", "semaphore"})
+    public String limiter;
+
+    @Param({"hotKey", "manyKeys"})
+    public String scenario;
+
+    // Criteria in the many-key scenario
+    @Param({"65536"})
+    public int keys;
+
+    // How the requests of the many-key scenario spread over the criteria
+    @Param({"uniform"})
+    public String distribution;
+
+    // Requests allowed per criterion per second; the sliding log keeps a timestamp for each, per criterion
+    @Param({"100"})
+    public long allowed;
+
+    private Admission admission;
+    private Integer[] criteria;
+
+    /**
+     * The decision under test, so every limiter is called the same way.
+     */
+    private interface Admission {
+        boolean requestAccess(Integer criterion);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        this.admission = createAdmission();
+        this.criteria = new Integer[this.keys];
+        for (int i = 0; i < this.keys; i++) {
+            this.criteria[i] = i;
+        }
+    }
+
+    private Admission createAdmission() {
+        switch (this.limiter) {
+            case "slidingLog":
+                return keyed(new SimpleCriterionBasedConcurrentRateLimiter<>(
+                        () -> RateLimitStrategy.slidingLog(1000, this.allowed)));
+            case "slidingWindowCounter":
+                return keyed(new SimpleCriterionBasedConcurrentRateLimiter<>(
+                        () -> RateLimitStrategy.slidingWindowCounter(1000, this.allowed)));
+            case "gcra":
+                return keyed(new SimpleCriterionBasedConcurrentRateLimiter<>(
+                        () -> RateLimitStrategy.gcra(1000, this.allowed)));
+            case "tokenBucket":
+                return keyed(new SimpleCriterionBasedConcurrentRateLimiter<>(
+                        () -> new TokenBucketRateLimiter<>(1000, this.allowed)));
+            case "semaphore": {
+                ConcurrentHashMap<Integer, Semaphore> semaphores = new ConcurrentHashMap<>();
+                int permits = (int) this.allowed;
+                return criterion -> {
+                    Semaphore semaphore = semaphores.get(criterion);
+                    if (semaphore == null) {
+                        semaphore = semaphores.computeIfAbsent(criterion, key -> new Semaphore(permits));
+                    }
+                    if (semaphore.tryAcquire()) {
+                        semaphore.release();
+                        return true;
+                    }
+                    return false;
+                };
+            }
+            default:
+                throw new IllegalArgumentException("Unknown limiter: " + this.limiter);
+        }
+    }
+
+    private static Admission keyed(SimpleCriterionBasedConcurrentRateLimiter<Integer> rateLimiter) {
+        return rateLimiter::requestAccess;
+    }
+
+    /**
+     * The criteria one thread requests access for, replayed in a loop.
+     */
+    @State(Scope.Thread)
+    public static class Requests {
+        private int[] criterionIndexes;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(RateLimiterBenchmark benchmark, ThreadParams thread) {
+            switch (benchmark.scenario) {
+                case "hotKey":
+                    this.criterionIndexes = new int[REQUESTS];
+                    break;
+                case "manyKeys":
+                    this.criterionIndexes = KeyDistribution.sample(benchmark.distribution, benchmark.keys, REQUESTS,
+                            0x9E3779B97F4A7C15L * (thread.getThreadIndex() + 1));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown scenario: " + benchmark.scenario);
+            }
+        }
+
+        int next() {
+            return this.next = (this.next + 1) & (REQUESTS - 1);
+        }
+    }
+
+    @Benchmark
+    public boolean requestAccess(Requests requests) {
+        return this.admission.requestAccess(this.criteria[requests.criterionIndexes[requests.next()]]);
+    }
+}
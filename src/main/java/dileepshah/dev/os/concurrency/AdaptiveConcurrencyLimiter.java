@@ -0,0 +1,432 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AdaptiveConcurrencyLimiter limits how many requests are in flight at once, and finds the limit by itself from the
+ * latency it observes instead of being told a rate.
+ * <p>
+ * Each admitted request gets a {@link Token}, which the caller releases when the request completes: with
+ * {@link Token#onSuccess()} if the downstream answered, {@link Token#onDropped()} if it timed out or shed the request,
+ * or {@link Token#onIgnore()} if the outcome says nothing about the downstream. Every success or drop is a sample of
+ * the round-trip time at the concurrency the request ran with, and a {@link LimitAlgorithm} turns the samples into a
+ * new limit: when the downstream slows down the limit shrinks, so requests are turned away at once instead of queueing
+ * up behind the slow ones, and when it recovers the limit grows back.
+ * <p>
+ * Admission is a compare-and-set on the in-flight count against a volatile limit. Samples update the algorithm under
+ * a lock, which is only held for a few arithmetic operations per completed request.
+ */
+public class AdaptiveConcurrencyLimiter {
+    private final LimitAlgorithm algorithm;
+    private final AtomicInteger inFlight;
+    private volatile int limit;
+    private final Lock sampleLock;
+    private final LongAdder accepted;
+    private final LongAdder rejected;
+    private final LongAdder succeeded;
+    private final LongAdder dropped;
+    // Guarded by the sample lock
+    private long minRttNanos;
+    private double averageRttNanos;
+
+    /**
+     * Constructs a limiter that adapts with the gradient algorithm, between 1 and 1000 requests in flight.
+     */
+    public AdaptiveConcurrencyLimiter() {
+        this(LimitAlgorithm.gradient(20, 1, 1000));
+    }
+
+    public AdaptiveConcurrencyLimiter(LimitAlgorithm algorithm) {
+        if (algorithm == null) {
+            throw new IllegalArgumentException("Invalid limit algorithm");
+        }
+        this.algorithm = algorithm;
+        this.inFlight = new AtomicInteger();
+        this.limit = algorithm.initialLimit();
+        this.sampleLock = new ReentrantLock();
+        this.accepted = new LongAdder();
+        this.rejected = new LongAdder();
+        this.succeeded = new LongAdder();
+        this.dropped = new LongAdder();
+        this.minRttNanos = Long.MAX_VALUE;
+    }
+
+    /**
+     * Admits the request if fewer requests than the limit are in flight.
+     *
+     * @return the token to release when the request completes, or empty if the request is turned down
+     */
+    public Optional<Token> tryAcquire() {
+        for (;;) {
+            int current = this.inFlight.get();
+            if (current >= this.limit) {
+                this.rejected.increment();
+                return Optional.empty();
+            }
+            if (this.inFlight.compareAndSet(current, current + 1)) {
+                this.accepted.increment();
+                return Optional.of(new Token(current + 1));
+            }
+        }
+    }
+
+    /**
+     * @return the current limit on requests in flight
+     */
+    public int limit() {
+        return this.limit;
+    }
+
+    /**
+     * @return the number of requests in flight
+     */
+    public int inFlight() {
+        return this.inFlight.get();
+    }
+
+    public Snapshot snapshot() {
+        long minRtt;
+        double averageRtt;
+        this.sampleLock.lock();
+        try {
+            minRtt = this.minRttNanos == Long.MAX_VALUE ? 0 : this.minRttNanos;
+            averageRtt = this.averageRttNanos;
+        } finally {
+            this.sampleLock.unlock();
+        }
+        return new Snapshot(this.limit, this.inFlight.get(), this.accepted.sum(), this.rejected.sum(),
+                this.succeeded.sum(), this.dropped.sum(), minRtt, (long) averageRtt);
+    }
+
+    private void onSample(long rttNanos, int inFlightAtStart, boolean wasDropped) {
+        (wasDropped ? this.dropped : this.succeeded).increment();
+        this.sampleLock.lock();
+        try {
+            this.minRttNanos = Math.min(this.minRttNanos, rttNanos);
+            this.averageRttNanos = this.averageRttNanos == 0 ? rttNanos
+                    : this.averageRttNanos * 0.9 + rttNanos * 0.1;
+            this.limit = this.algorithm.update(this.limit, inFlightAtStart, rttNanos, wasDropped);
+        } finally {
+            this.sampleLock.unlock();
+        }
+    }
+
+    /**
+     * The permission for one request to be in flight. Release it exactly once, when the request completes; releases
+     * after the first are ignored.
+     */
+    public final class Token {
+        private final long startNanos;
+        private final int inFlightAtStart;
+        private final AtomicBoolean released;
+
+        private Token(int inFlightAtStart) {
+            this.startNanos = System.nanoTime();
+            this.inFlightAtStart = inFlightAtStart;
+            this.released = new AtomicBoolean();
+        }
+
+        /**
+         * The request completed normally; its round-trip time is a sample of the downstream latency.
+         */
+        public void onSuccess() {
+            release(true, false);
+        }
+
+        /**
+         * The request timed out or was rejected by the downstream, a sign of overload.
+         */
+        public void onDropped() {
+            release(true, true);
+        }
+
+        /**
+         * The request completed without telling anything about the downstream, e.g. it failed validation early.
+         */
+        public void onIgnore() {
+            release(false, false);
+        }
+
+        private void release(boolean sample, boolean wasDropped) {
+            if (!this.released.compareAndSet(false, true)) {
+                return;
+            }
+            inFlight.decrementAndGet();
+            if (sample) {
+                onSample(System.nanoTime() - this.startNanos, this.inFlightAtStart, wasDropped);
+            }
+        }
+    }
+
+    /**
+     * Turns round-trip samples into a new limit. Called with one sample at a time, so implementations can keep state
+     * without synchronising.
+     */
+    public interface LimitAlgorithm {
+
+        int initialLimit();
+
+        /**
+         * @param limit    The current limit.
+         * @param inFlight The requests in flight when the sampled one was admitted, itself included.
+         * @param rttNanos The round-trip time of the sampled request.
+         * @param dropped  Whether the request timed out or was rejected by the downstream.
+         * @return the new limit
+         */
+        int update(int limit, int inFlight, long rttNanos, boolean dropped);
+
+        /**
+         * Additive increase, multiplicative decrease: grows the limit by one with each success while the limit is in
+         * use, and cuts it by the back-off ratio on each drop or request slower than the timeout. Simple and
+         * predictable, but it only reacts once requests fail or time out.
+         *
+         * @param backoffRatio The share of the limit kept on a drop, between 0.5 and 1.
+         * @param timeout      Requests slower than this count as dropped.
+         */
+        static LimitAlgorithm aimd(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long timeout,
+                                   TimeUnit unit) {
+            return new Aimd(initialLimit, minLimit, maxLimit, backoffRatio, unit.toNanos(timeout));
+        }
+
+        /**
+         * Compares the recent round-trip time with the lowest one seen lately, the latency without queueing: while
+         * latency stays within 1.5 times that baseline the limit grows by about its square root, the queue it allows
+         * for, and as latency rises beyond it the limit shrinks in proportion, before anything times out.
+         */
+        static LimitAlgorithm gradient(int initialLimit, int minLimit, int maxLimit) {
+            return new Gradient(initialLimit, minLimit, maxLimit);
+        }
+    }
+
+    private static final class Aimd implements LimitAlgorithm {
+        private final int initialLimit;
+        private final int minLimit;
+        private final int maxLimit;
+        private final double backoffRatio;
+        private final long timeoutNanos;
+
+        Aimd(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long timeoutNanos) {
+            checkLimits(initialLimit, minLimit, maxLimit);
+            if (backoffRatio < 0.5 || backoffRatio >= 1 || timeoutNanos <= 0) {
+                throw new IllegalArgumentException("Back-off ratio must be in [0.5, 1) and timeout positive");
+            }
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.backoffRatio = backoffRatio;
+            this.timeoutNanos = timeoutNanos;
+        }
+
+        @Override
+        public int initialLimit() {
+            return this.initialLimit;
+        }
+
+        @Override
+        public int update(int limit, int inFlight, long rttNanos, boolean dropped) {
+            if (dropped || rttNanos > this.timeoutNanos) {
+                return Math.max(this.minLimit, (int) (limit * this.backoffRatio));
+            }
+            if (inFlight * 2 >= limit) {
+                // Only grow a limit that is being used, or it drifts up while traffic is light
+                return Math.min(this.maxLimit, limit + 1);
+            }
+            return limit;
+        }
+    }
+
+    private static final class Gradient implements LimitAlgorithm {
+        private static final double TOLERANCE = 1.5;
+        private static final double SMOOTHING = 0.2;
+        private static final int SHORT_WINDOW = 10;
+        private static final int BASELINE_WINDOW = 1000;
+
+        private final int initialLimit;
+        private final int minLimit;
+        private final int maxLimit;
+        private double estimatedLimit;
+        private double shortRttNanos;
+        // The baseline is the lowest round-trip time of this window and the one before, so it follows a downstream
+        // that got permanently slower within two windows, but a single burst of slow samples doesn't move it
+        private long windowMinRttNanos;
+        private long previousMinRttNanos;
+        private int windowSamples;
+
+        Gradient(int initialLimit, int minLimit, int maxLimit) {
+            checkLimits(initialLimit, minLimit, maxLimit);
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.estimatedLimit = initialLimit;
+            this.windowMinRttNanos = Long.MAX_VALUE;
+            this.previousMinRttNanos = Long.MAX_VALUE;
+        }
+
+        @Override
+        public int initialLimit() {
+            return this.initialLimit;
+        }
+
+        @Override
+        public int update(int limit, int inFlight, long rttNanos, boolean dropped) {
+            this.shortRttNanos = this.shortRttNanos == 0 ? rttNanos
+                    : this.shortRttNanos + (rttNanos - this.shortRttNanos) / SHORT_WINDOW;
+            this.windowMinRttNanos = Math.min(this.windowMinRttNanos, rttNanos);
+            if (++this.windowSamples == BASELINE_WINDOW) {
+                this.previousMinRttNanos = this.windowMinRttNanos;
+                this.windowMinRttNanos = Long.MAX_VALUE;
+                this.windowSamples = 0;
+            }
+            if (!dropped && inFlight < this.estimatedLimit / 2) {
+                // Too little traffic to tell anything about the limit
+                return limit;
+            }
+            double baseline = Math.min(this.windowMinRttNanos, this.previousMinRttNanos);
+            double gradient = dropped ? 0.5
+                    : Math.max(0.5, Math.min(1.0, TOLERANCE * baseline / this.shortRttNanos));
+            double target = this.estimatedLimit * gradient + Math.sqrt(this.estimatedLimit);
+            this.estimatedLimit = Math.max(this.minLimit, Math.min(this.maxLimit,
+                    this.estimatedLimit * (1 - SMOOTHING) + target * SMOOTHING));
+            return (int) this.estimatedLimit;
+        }
+    }
+
+    private static void checkLimits(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || minLimit > initialLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Limits must satisfy 0 < min <= initial <= max");
+        }
+    }
+
+    /**
+     * Point-in-time metrics of the limiter; counters are since it was created.
+     */
+    public static final class Snapshot {
+        private final int limit;
+        private final int inFlight;
+        private final long accepted;
+        private final long rejected;
+        private final long succeeded;
+        private final long dropped;
+        private final long minRttNanos;
+        private final long averageRttNanos;
+
+        Snapshot(int limit, int inFlight, long accepted, long rejected, long succeeded, long dropped,
+                 long minRttNanos, long averageRttNanos) {
+            this.limit = limit;
+            this.inFlight = inFlight;
+            this.accepted = accepted;
+            this.rejected = rejected;
+            this.succeeded = succeeded;
+            this.dropped = dropped;
+            this.minRttNanos = minRttNanos;
+            this.averageRttNanos = averageRttNanos;
+        }
+
+        public int limit() {
+            return this.limit;
+        }
+
+        public int inFlight() {
+            return this.inFlight;
+        }
+
+        public long accepted() {
+            return this.accepted;
+        }
+
+        public long rejected() {
+            return this.rejected;
+        }
+
+        public long succeeded() {
+            return this.succeeded;
+        }
+
+        public long dropped() {
+            return this.dropped;
+        }
+
+        /**
+         * @return the lowest round-trip time sampled, 0 before the first sample
+         */
+        public long minRttNanos() {
+            return this.minRttNanos;
+        }
+
+        /**
+         * @return the exponentially weighted average of recent round-trip times, 0 before the first sample
+         */
+        public long averageRttNanos() {
+            return this.averageRttNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "limit=" + this.limit + ", inFlight=" + this.inFlight + ", accepted=" + this.accepted
+                    + ", rejected=" + this.rejected + ", succeeded=" + this.succeeded + ", dropped=" + this.dropped
+                    + ", minRtt=" + TimeUnit.NANOSECONDS.toMicros(this.minRttNanos) + "us, averageRtt="
+                    + TimeUnit.NANOSECONDS.toMicros(this.averageRttNanos) + "us";
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+        // A downstream that answers in 2 ms up to its capacity, and queues beyond it
+        AtomicInteger capacity = new AtomicInteger(40);
+        AtomicInteger downstream = new AtomicInteger();
+
+        final int clients = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(4);
+        for (int c = 0; c < clients; c++) {
+            executor.execute(() -> {
+                while (System.nanoTime() < end) {
+                    Optional<Token> token = limiter.tryAcquire();
+                    try {
+                        if (token.isEmpty()) {
+                            // Turned away at once; a real client would fail fast or try another replica
+                            Thread.sleep(1);
+                            continue;
+                        }
+                        int concurrency = downstream.incrementAndGet();
+                        long latencyMicros = 2000L * Math.max(capacity.get(), concurrency) / capacity.get();
+                        Thread.sleep(latencyMicros / 1000, ThreadLocalRandom.current().nextInt(1000));
+                        downstream.decrementAndGet();
+                        if (latencyMicros > 20_000) {
+                            token.get().onDropped();
+                        } else {
+                            token.get().onSuccess();
+                        }
+                    } catch (InterruptedException e) {
+                        token.ifPresent(Token::onIgnore);
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            });
+        }
+
+        for (int tick = 1; tick <= 8; tick++) {
+            Thread.sleep(500);
+            if (tick == 4) {
+                // The downstream degrades to a quarter of its capacity
+                capacity.set(10);
+                System.out.println("-- downstream capacity drops to 10");
+            }
+            System.out.println(limiter.snapshot());
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(8000, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+}
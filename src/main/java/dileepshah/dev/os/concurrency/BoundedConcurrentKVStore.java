@@ -0,0 +1,553 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Bounded cache mode of {@link ImprovedSimpleConcurrentKVStore}: the entries still live in the segmented store, but
+ * the total weight is capped and entries can carry a time to live.
+ * <p>
+ * Eviction follows W-TinyLFU. New entries enter a small LRU window (1% of the capacity); entries leaving the window
+ * compete with the LRU victim of the segmented LRU main space (probation and protected), and the one a
+ * {@link FrequencySketch} has seen less often is evicted. Expired entries are treated as absent as soon as they are
+ * read and are removed in batches during maintenance.
+ * <p>
+ * Reads never touch the eviction policy directly. They record the accessed node in a striped, lossy ring buffer and
+ * writes queue their policy update in a write buffer; whichever thread gets the eviction lock with
+ * {@link Lock#tryLock()} replays both buffers. A full read buffer simply drops the access, which only costs a little
+ * precision of the LRU order.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class BoundedConcurrentKVStore<K, V> {
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int READ_BUFFER_SIZE = 16;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int READ_BUFFER_DRAIN_THRESHOLD = READ_BUFFER_SIZE / 2;
+    private static final int EXPIRY_BATCH = 1024;
+    private static final int NONE = 0;
+    private static final int WINDOW = 1;
+    private static final int PROBATION = 2;
+    private static final int PROTECTED = 3;
+
+    private final ImprovedSimpleConcurrentKVStore<K, Node<K, V>> store;
+    private final ToIntBiFunction<? super K, ? super V> weigher;
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private final long defaultTtlNanos;
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final Queue<Runnable> writeBuffer;
+    private final Lock evictionLock;
+
+    // Guarded by evictionLock
+    private final FrequencySketch sketch;
+    private final AccessOrderDeque<K, V> window;
+    private final AccessOrderDeque<K, V> probation;
+    private final AccessOrderDeque<K, V> protectedQueue;
+    private final PriorityQueue<Node<K, V>> expiryQueue;
+    private long windowWeight;
+    private long protectedWeight;
+    private volatile long weightedSize;
+    private volatile int entries;
+
+    /**
+     * @param numberOfSegments the number of segments of the backing store
+     * @param maximumWeight    the maximum total weight of the entries
+     * @param weigher          computes the weight of an entry, must not be negative
+     * @param defaultTtl       the time to live of entries put without one, 0 for no expiry
+     * @param unit             the unit of the default time to live
+     */
+    @SuppressWarnings("unchecked")
+    public BoundedConcurrentKVStore(int numberOfSegments, long maximumWeight,
+                                    ToIntBiFunction<? super K, ? super V> weigher, long defaultTtl, TimeUnit unit) {
+        if (maximumWeight <= 0) {
+            throw new IllegalArgumentException("Maximum weight must be positive");
+        }
+        if (weigher == null || defaultTtl < 0) {
+            throw new IllegalArgumentException("Invalid weigher or time to live");
+        }
+        this.store = new ImprovedSimpleConcurrentKVStore<>(numberOfSegments);
+        this.weigher = weigher;
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (long) ((maximumWeight - this.windowMaximum) * 0.8);
+        this.defaultTtlNanos = unit.toNanos(defaultTtl);
+        this.readBuffers = (ReadBuffer<K, V>[])
+                new ReadBuffer<?, ?>[KVHashing.tableSizeFor(4 * Runtime.getRuntime().availableProcessors())];
+        for (int i = 0; i < this.readBuffers.length; i++) {
+            this.readBuffers[i] = new ReadBuffer<>();
+        }
+        this.writeBuffer = new ConcurrentLinkedQueue<>();
+        this.evictionLock = new ReentrantLock();
+        this.sketch = new FrequencySketch(maximumWeight);
+        this.window = new AccessOrderDeque<>();
+        this.probation = new AccessOrderDeque<>();
+        this.protectedQueue = new AccessOrderDeque<>();
+        this.expiryQueue = new PriorityQueue<>(Comparator.comparingLong((Node<K, V> node) -> node.expiresAt));
+    }
+
+    /**
+     * Creates a cache bounded by the number of entries.
+     *
+     * @param maximumEntries the maximum number of entries
+     * @param defaultTtl     the time to live of entries put without one, 0 for no expiry
+     * @param unit           the unit of the default time to live
+     */
+    public BoundedConcurrentKVStore(long maximumEntries, long defaultTtl, TimeUnit unit) {
+        this(DEFAULT_SEGMENTS, maximumEntries, (key, value) -> 1, defaultTtl, unit);
+    }
+
+    public BoundedConcurrentKVStore(long maximumEntries) {
+        this(maximumEntries, 0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the value mapped to the key
+     * @throws IllegalArgumentException if the key doesn't exist or has expired
+     */
+    public V get(K key) {
+        V value = getOrNull(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+        }
+        return value;
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the value mapped to the key, or null if it doesn't exist or has expired
+     */
+    public V getOrNull(K key) {
+        Node<K, V> node = lookup(key);
+        if (node == null) {
+            return null;
+        }
+        if (node.isExpired(System.nanoTime())) {
+            expire(node);
+            return null;
+        }
+        recordRead(node);
+        return node.value;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, this.defaultTtlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param ttl  the time to live of this entry, 0 for no expiry
+     * @param unit the unit of the time to live
+     */
+    public void put(K key, V value, long ttl, TimeUnit unit) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        int weight = this.weigher.applyAsInt(key, value);
+        if (weight < 0 || ttl < 0) {
+            throw new IllegalArgumentException("Invalid weight or time to live");
+        }
+        Node<K, V> node = new Node<>(key, value, weight, expiresAt(unit.toNanos(ttl)));
+        Node<K, V> previous = this.store.put(key, node);
+        if (previous != null) {
+            previous.retired = true;
+            this.writeBuffer.add(() -> onRemove(previous));
+        }
+        this.writeBuffer.add(() -> onAdd(node));
+        drainBuffers();
+    }
+
+    /**
+     * @param key the key to remove
+     * @return the value that was mapped to the key
+     * @throws IllegalArgumentException if the key doesn't exist or has expired
+     */
+    public V delete(K key) {
+        Node<K, V> node = this.store.delete(key);
+        node.retired = true;
+        this.writeBuffer.add(() -> onRemove(node));
+        drainBuffers();
+        if (node.isExpired(System.nanoTime())) {
+            throw new IllegalArgumentException("Invalid key or it doesn't exist");
+        }
+        return node.value;
+    }
+
+    public boolean containsKey(K key) {
+        Node<K, V> node = lookup(key);
+        return node != null && !node.isExpired(System.nanoTime());
+    }
+
+    /**
+     * @return the number of entries known to the eviction policy; writes that are still buffered aren't counted yet
+     */
+    public int size() {
+        return this.entries;
+    }
+
+    public long weightedSize() {
+        return this.weightedSize;
+    }
+
+    /**
+     * Replays the pending reads and writes, removes expired entries and evicts down to the maximum weight.
+     */
+    public void cleanUp() {
+        this.evictionLock.lock();
+        try {
+            maintenance();
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    private Node<K, V> lookup(K key) {
+        return this.store.getOrNull(key);
+    }
+
+    private long expiresAt(long ttlNanos) {
+        if (ttlNanos == 0) {
+            return Long.MAX_VALUE;
+        }
+        long now = System.nanoTime();
+        return ttlNanos >= Long.MAX_VALUE - now ? Long.MAX_VALUE : now + ttlNanos;
+    }
+
+    private void expire(Node<K, V> node) {
+        if (this.store.remove(node.key, node)) {
+            node.retired = true;
+            this.writeBuffer.add(() -> onRemove(node));
+            drainBuffers();
+        }
+    }
+
+    private void recordRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = this.readBuffers[
+                KVHashing.mix32(Thread.currentThread().hashCode()) & (this.readBuffers.length - 1)];
+        if (buffer.offer(node) >= READ_BUFFER_DRAIN_THRESHOLD && this.evictionLock.tryLock()) {
+            try {
+                maintenance();
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Runs maintenance until the write buffer is empty or another thread holds the eviction lock. Re-checking after
+     * unlocking makes sure a task queued while this thread was draining isn't left behind.
+     */
+    private void drainBuffers() {
+        while (!this.writeBuffer.isEmpty()) {
+            if (!this.evictionLock.tryLock()) {
+                return;
+            }
+            try {
+                maintenance();
+            } finally {
+                this.evictionLock.unlock();
+            }
+        }
+    }
+
+    private void maintenance() {
+        for (ReadBuffer<K, V> buffer : this.readBuffers) {
+            buffer.drain(this);
+        }
+        Runnable task;
+        while ((task = this.writeBuffer.poll()) != null) {
+            task.run();
+        }
+        expireEntries(System.nanoTime());
+        evictEntries();
+    }
+
+    private void onAdd(Node<K, V> node) {
+        if (node.retired) {
+            return;
+        }
+        this.sketch.increment(KVHashing.mix32(node.key.hashCode()));
+        node.queue = WINDOW;
+        this.window.addLast(node);
+        this.windowWeight += node.weight;
+        this.weightedSize += node.weight;
+        this.entries++;
+        if (node.expiresAt != Long.MAX_VALUE) {
+            this.expiryQueue.add(node);
+        }
+    }
+
+    private void onRemove(Node<K, V> node) {
+        if (node.queue != NONE) {
+            unlink(node);
+        }
+    }
+
+    private void onAccess(Node<K, V> node) {
+        if (node.queue == NONE) {
+            return;
+        }
+        this.sketch.increment(KVHashing.mix32(node.key.hashCode()));
+        if (node.queue == WINDOW) {
+            this.window.moveToBack(node);
+        } else if (node.queue == PROTECTED) {
+            this.protectedQueue.moveToBack(node);
+        } else {
+            this.probation.remove(node);
+            node.queue = PROTECTED;
+            this.protectedQueue.addLast(node);
+            this.protectedWeight += node.weight;
+            while (this.protectedWeight > this.protectedMaximum && this.protectedQueue.peekFirst() != node) {
+                Node<K, V> demoted = this.protectedQueue.peekFirst();
+                this.protectedQueue.remove(demoted);
+                this.protectedWeight -= demoted.weight;
+                demoted.queue = PROBATION;
+                this.probation.addLast(demoted);
+            }
+        }
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.queue == WINDOW) {
+            this.window.remove(node);
+            this.windowWeight -= node.weight;
+        } else if (node.queue == PROTECTED) {
+            this.protectedQueue.remove(node);
+            this.protectedWeight -= node.weight;
+        } else {
+            this.probation.remove(node);
+        }
+        node.queue = NONE;
+        this.weightedSize -= node.weight;
+        this.entries--;
+    }
+
+    private void evict(Node<K, V> node) {
+        unlink(node);
+        node.retired = true;
+        this.store.remove(node.key, node);
+    }
+
+    private void expireEntries(long now) {
+        for (int i = 0; i < EXPIRY_BATCH; i++) {
+            Node<K, V> node = this.expiryQueue.peek();
+            if (node == null || node.expiresAt > now) {
+                break;
+            }
+            this.expiryQueue.poll();
+            if (node.queue != NONE) {
+                evict(node);
+            }
+        }
+        // Replaced and deleted nodes are left in the expiry queue lazily; drop them once they dominate it.
+        if (this.expiryQueue.size() > 2 * this.entries + 64) {
+            this.expiryQueue.removeIf(node -> node.queue == NONE);
+        }
+    }
+
+    /**
+     * Moves the window overflow to the tail of probation and, while over capacity, lets each of those candidates
+     * compete against the probation LRU victim. The less frequent of the two is evicted.
+     */
+    private void evictEntries() {
+        Node<K, V> candidate = null;
+        while (this.windowWeight > this.windowMaximum && this.window.peekFirst() != null) {
+            Node<K, V> node = this.window.peekFirst();
+            this.window.remove(node);
+            this.windowWeight -= node.weight;
+            node.queue = PROBATION;
+            this.probation.addLast(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (this.weightedSize > this.maximumWeight) {
+            Node<K, V> victim = this.probation.peekFirst();
+            if (victim == null) {
+                victim = this.protectedQueue.peekFirst() != null
+                        ? this.protectedQueue.peekFirst() : this.window.peekFirst();
+            }
+            if (victim == null) {
+                break;
+            }
+            if (candidate == null || candidate.queue != PROBATION || candidate == victim) {
+                if (candidate == victim) {
+                    candidate = victim.next;
+                }
+                evict(victim);
+            } else if (candidate.weight > this.maximumWeight
+                    || this.sketch.frequency(KVHashing.mix32(candidate.key.hashCode()))
+                    <= this.sketch.frequency(KVHashing.mix32(victim.key.hashCode()))) {
+                Node<K, V> next = candidate.next;
+                evict(candidate);
+                candidate = next;
+            } else {
+                evict(victim);
+            }
+        }
+    }
+
+    /**
+     * An immutable entry; a put always installs a new node so readers never see a torn value, weight or expiry.
+     */
+    static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int weight;
+        final long expiresAt;
+        // Set once the node is no longer mapped in the store, so a late add of the node is ignored.
+        volatile boolean retired;
+        // Guarded by the eviction lock
+        int queue;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return this.expiresAt <= now;
+        }
+    }
+
+    /**
+     * Intrusive doubly linked list in access order, least recently used first.
+     */
+    static final class AccessOrderDeque<K, V> {
+        private Node<K, V> head;
+        private Node<K, V> tail;
+
+        Node<K, V> peekFirst() {
+            return this.head;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.prev = this.tail;
+            node.next = null;
+            if (this.tail == null) {
+                this.head = node;
+            } else {
+                this.tail.next = node;
+            }
+            this.tail = node;
+        }
+
+        void remove(Node<K, V> node) {
+            if (node.prev == null) {
+                this.head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                this.tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K, V> node) {
+            if (node != this.tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * Bounded multi-producer ring buffer of accessed nodes. Producers claim a slot with a CAS on the write counter and
+     * give up when the buffer is full or the CAS fails; the single consumer drains it under the eviction lock.
+     */
+    static final class ReadBuffer<K, V> {
+        private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCounter = new AtomicLong();
+        private volatile long readCounter;
+
+        /**
+         * @return the number of pending reads in this buffer
+         */
+        int offer(Node<K, V> node) {
+            long head = this.readCounter;
+            long tail = this.writeCounter.get();
+            long size = tail - head;
+            if (size >= READ_BUFFER_SIZE) {
+                return READ_BUFFER_SIZE;
+            }
+            if (this.writeCounter.compareAndSet(tail, tail + 1)) {
+                this.slots.lazySet((int) (tail & READ_BUFFER_MASK), node);
+                return (int) size + 1;
+            }
+            return (int) size;
+        }
+
+        void drain(BoundedConcurrentKVStore<K, V> cache) {
+            long head = this.readCounter;
+            long tail = this.writeCounter.get();
+            for (; head != tail; head++) {
+                int index = (int) (head & READ_BUFFER_MASK);
+                Node<K, V> node = this.slots.get(index);
+                if (node == null) {
+                    // The producer claimed the slot but hasn't published the node yet.
+                    break;
+                }
+                this.slots.lazySet(index, null);
+                cache.onAccess(node);
+            }
+            this.readCounter = head;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        BoundedConcurrentKVStore<Integer, String> cache = new BoundedConcurrentKVStore<>(100);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    // Keys 0..9 are hot, the rest is a one-hit scan that shouldn't flush them out.
+                    int hot = i % 10;
+                    if (cache.getOrNull(hot) == null) {
+                        cache.put(hot, "hot-" + hot);
+                    }
+                    cache.put(1_000 + i, "cold-" + i);
+                }
+            });
+        }
+
+        executor.shutdown();
+        if (!executor.awaitTermination(8000, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+        cache.cleanUp();
+
+        int hotHits = 0;
+        for (int hot = 0; hot < 10; hot++) {
+            hotHits += cache.containsKey(hot) ? 1 : 0;
+        }
+        System.out.println("Size (max 100): " + cache.size() + ", hot keys retained: " + hotHits + "/10");
+
+        BoundedConcurrentKVStore<String, String> sessions = new BoundedConcurrentKVStore<>(10, 200, TimeUnit.MILLISECONDS);
+        sessions.put("session", "alive");
+        System.out.println("Before expiry: " + sessions.getOrNull("session"));
+        Thread.sleep(300);
+        System.out.println("After expiry (should be null): " + sessions.getOrNull("session"));
+    }
+}
@@ -0,0 +1,427 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent KV store that locks per bin instead of per segment, modelled on {@code ConcurrentHashMap}.
+ * <p>
+ * The table is an array of bins holding chains of nodes. Reads never lock: they follow volatile links. A put into an
+ * empty bin is a single CAS of the new node into the slot; only a put or delete on an occupied bin synchronises, and
+ * then only on the head node of that bin, so contention is limited to keys that really collide.
+ * <p>
+ * When the size passes 75% of the table, the table is doubled by a cooperative transfer. Threads claim strides of bins
+ * from a shared transfer index, copy each bin into its low and high halves of the next table and leave a forwarding
+ * node behind. Readers that meet a forwarding node continue in the next table; writers that meet one help with the
+ * transfer before retrying, so the resize is spread over every thread that writes during it. {@code sizeCtl} holds
+ * the resize threshold, or while resizing a stamp for the table size in the high bits and the number of active
+ * resizers plus one in the low bits.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class CasBinConcurrentKVStore<K, V> {
+    private static final int DEFAULT_CAPACITY = 16;
+    private static final int MAXIMUM_CAPACITY = 1 << 30;
+    private static final int MIN_TRANSFER_STRIDE = 16;
+    private static final int RESIZE_STAMP_BITS = 16;
+    private static final int RESIZE_STAMP_SHIFT = 32 - RESIZE_STAMP_BITS;
+    private static final int MAX_RESIZERS = (1 << (32 - RESIZE_STAMP_BITS)) - 1;
+    private static final int MOVED = -1;
+    private static final int HASH_BITS = 0x7fffffff;
+    private static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    private volatile AtomicReferenceArray<Node<K, V>> table;
+    private volatile AtomicReferenceArray<Node<K, V>> nextTable;
+    private final AtomicInteger sizeCtl;
+    private final AtomicInteger transferIndex;
+    private final LongAdder count;
+
+    public CasBinConcurrentKVStore(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Initial capacity must be positive");
+        }
+        int n = KVHashing.tableSizeFor(initialCapacity);
+        this.table = new AtomicReferenceArray<>(n);
+        this.sizeCtl = new AtomicInteger(n - (n >>> 2));
+        this.transferIndex = new AtomicInteger();
+        this.count = new LongAdder();
+    }
+
+    public CasBinConcurrentKVStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public V get(K key) {
+        V value = getOrNull(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+        }
+        return value;
+    }
+
+    /**
+     * Lock-free lookup.
+     *
+     * @return the value mapped to the key, or null if it doesn't exist
+     */
+    public V getOrNull(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        int hash = spread(key.hashCode());
+        AtomicReferenceArray<Node<K, V>> tab = this.table;
+        outer:
+        for (;;) {
+            Node<K, V> e = tab.get((tab.length() - 1) & hash);
+            while (e != null) {
+                if (e.hash == MOVED) {
+                    tab = ((ForwardingNode<K, V>) e).nextTable;
+                    continue outer;
+                }
+                if (e.hash == hash && e.key.equals(key)) {
+                    return e.value;
+                }
+                e = e.next;
+            }
+            return null;
+        }
+    }
+
+    public boolean containsKey(K key) {
+        return key != null && getOrNull(key) != null;
+    }
+
+    /**
+     * @return the previous value mapped to the key, or null if there was none
+     */
+    public V put(K key, V value) {
+        return putVal(key, value, false);
+    }
+
+    /**
+     * @return the current value if the key was already mapped (and is left untouched), otherwise null
+     */
+    public V putIfAbsent(K key, V value) {
+        return putVal(key, value, true);
+    }
+
+    private V putVal(K key, V value, boolean onlyIfAbsent) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        int hash = spread(key.hashCode());
+        int binCount = 0;
+        for (AtomicReferenceArray<Node<K, V>> tab = this.table; ; ) {
+            int i = (tab.length() - 1) & hash;
+            Node<K, V> first = tab.get(i);
+            if (first == null) {
+                if (tab.compareAndSet(i, null, new Node<>(hash, key, value, null))) {
+                    break;
+                }
+            } else if (first.hash == MOVED) {
+                tab = helpTransfer(tab, (ForwardingNode<K, V>) first);
+            } else {
+                V previous = null;
+                synchronized (first) {
+                    if (tab.get(i) == first) {
+                        binCount = 1;
+                        for (Node<K, V> e = first; ; ++binCount) {
+                            if (e.hash == hash && e.key.equals(key)) {
+                                previous = e.value;
+                                if (!onlyIfAbsent) {
+                                    e.value = value;
+                                }
+                                break;
+                            }
+                            if (e.next == null) {
+                                e.next = new Node<>(hash, key, value, null);
+                                break;
+                            }
+                            e = e.next;
+                        }
+                    }
+                }
+                if (binCount != 0) {
+                    if (previous != null) {
+                        return previous;
+                    }
+                    break;
+                }
+            }
+        }
+        addCount(binCount);
+        return null;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public V delete(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key or it doesn't exist");
+        }
+        V removed = removeNode(key, null);
+        if (removed == null) {
+            throw new IllegalArgumentException("Invalid key or it doesn't exist");
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the key only if it is currently mapped to the given value (compared by identity).
+     *
+     * @return true if the entry was removed
+     */
+    public boolean remove(K key, V value) {
+        return key != null && value != null && removeNode(key, value) != null;
+    }
+
+    /**
+     * Unlinks the node of the key, if its value is {@code expected} or {@code expected} is null.
+     *
+     * @return the removed value, or null if nothing was removed
+     */
+    private V removeNode(K key, V expected) {
+        int hash = spread(key.hashCode());
+        for (AtomicReferenceArray<Node<K, V>> tab = this.table; ; ) {
+            int i = (tab.length() - 1) & hash;
+            Node<K, V> first = tab.get(i);
+            if (first == null) {
+                break;
+            }
+            if (first.hash == MOVED) {
+                tab = helpTransfer(tab, (ForwardingNode<K, V>) first);
+                continue;
+            }
+            boolean validated = false;
+            V removed = null;
+            synchronized (first) {
+                if (tab.get(i) == first) {
+                    validated = true;
+                    for (Node<K, V> e = first, pred = null; e != null; pred = e, e = e.next) {
+                        if (e.hash == hash && e.key.equals(key)) {
+                            if (expected != null && e.value != expected) {
+                                break;
+                            }
+                            removed = e.value;
+                            if (pred == null) {
+                                tab.set(i, e.next);
+                            } else {
+                                pred.next = e.next;
+                            }
+                            break;
+                        }
+                    }
+                }
+            }
+            if (validated) {
+                if (removed != null) {
+                    this.count.decrement();
+                }
+                return removed;
+            }
+        }
+        return null;
+    }
+
+    public long size() {
+        return Math.max(0, this.count.sum());
+    }
+
+    private static int spread(int hashCode) {
+        return KVHashing.mix32(hashCode) & HASH_BITS;
+    }
+
+    private static int resizeStamp(int n) {
+        return Integer.numberOfLeadingZeros(n) | (1 << (RESIZE_STAMP_BITS - 1));
+    }
+
+    /**
+     * Counts the insert and, once a chain has grown past one node, checks whether the table must grow. Starts the
+     * resize or joins the one in progress. Short chains skip the check so the common path never sums the counter.
+     */
+    private void addCount(int binCount) {
+        this.count.increment();
+        if (binCount <= 1) {
+            return;
+        }
+        long size = this.count.sum();
+        int sc;
+        AtomicReferenceArray<Node<K, V>> tab;
+        while (size >= (long) (sc = this.sizeCtl.get()) && (tab = this.table).length() < MAXIMUM_CAPACITY) {
+            int n = tab.length();
+            int rs = resizeStamp(n) << RESIZE_STAMP_SHIFT;
+            if (sc < 0) {
+                AtomicReferenceArray<Node<K, V>> next = this.nextTable;
+                if ((sc >>> RESIZE_STAMP_SHIFT) != (rs >>> RESIZE_STAMP_SHIFT) || sc == rs + MAX_RESIZERS
+                        || sc == rs + 1 || next == null || this.transferIndex.get() <= 0) {
+                    break;
+                }
+                if (this.sizeCtl.compareAndSet(sc, sc + 1)) {
+                    transfer(tab, next);
+                }
+            } else if (this.sizeCtl.compareAndSet(sc, rs + 2)) {
+                AtomicReferenceArray<Node<K, V>> next = new AtomicReferenceArray<>(n << 1);
+                this.nextTable = next;
+                this.transferIndex.set(n);
+                transfer(tab, next);
+            }
+            size = this.count.sum();
+        }
+    }
+
+    private AtomicReferenceArray<Node<K, V>> helpTransfer(AtomicReferenceArray<Node<K, V>> tab,
+                                                          ForwardingNode<K, V> forwarding) {
+        AtomicReferenceArray<Node<K, V>> next = forwarding.nextTable;
+        int rs = resizeStamp(tab.length()) << RESIZE_STAMP_SHIFT;
+        int sc;
+        while (next == this.nextTable && tab == this.table && (sc = this.sizeCtl.get()) < 0) {
+            if (sc == rs + MAX_RESIZERS || sc == rs + 1 || this.transferIndex.get() <= 0) {
+                break;
+            }
+            if (this.sizeCtl.compareAndSet(sc, sc + 1)) {
+                transfer(tab, next);
+                break;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Moves bins into the next table, claiming a stride of bins at a time from the top down. The last resizer to
+     * finish re-checks every bin and then publishes the next table.
+     */
+    private void transfer(AtomicReferenceArray<Node<K, V>> tab, AtomicReferenceArray<Node<K, V>> next) {
+        int n = tab.length();
+        int stride = Math.max(NCPU > 1 ? (n >>> 3) / NCPU : n, MIN_TRANSFER_STRIDE);
+        ForwardingNode<K, V> forwarding = new ForwardingNode<>(next);
+        boolean advance = true;
+        boolean finishing = false;
+        for (int i = 0, bound = 0; ; ) {
+            while (advance) {
+                int nextIndex;
+                if (--i >= bound || finishing) {
+                    advance = false;
+                } else if ((nextIndex = this.transferIndex.get()) <= 0) {
+                    i = -1;
+                    advance = false;
+                } else {
+                    int nextBound = nextIndex > stride ? nextIndex - stride : 0;
+                    if (this.transferIndex.compareAndSet(nextIndex, nextBound)) {
+                        bound = nextBound;
+                        i = nextIndex - 1;
+                        advance = false;
+                    }
+                }
+            }
+            if (i < 0) {
+                if (finishing) {
+                    this.nextTable = null;
+                    this.table = next;
+                    this.sizeCtl.set((n << 1) - (n >>> 1));
+                    return;
+                }
+                int sc = this.sizeCtl.get();
+                if (this.sizeCtl.compareAndSet(sc, sc - 1)) {
+                    if ((sc - 2) != resizeStamp(n) << RESIZE_STAMP_SHIFT) {
+                        return;
+                    }
+                    finishing = true;
+                    advance = true;
+                    i = n;
+                }
+                continue;
+            }
+            Node<K, V> first = tab.get(i);
+            if (first == null) {
+                advance = tab.compareAndSet(i, null, forwarding);
+            } else if (first.hash == MOVED) {
+                advance = true;
+            } else {
+                synchronized (first) {
+                    if (tab.get(i) == first) {
+                        // Copy rather than relink, so readers still walking the old chain are unaffected.
+                        Node<K, V> low = null;
+                        Node<K, V> high = null;
+                        for (Node<K, V> e = first; e != null; e = e.next) {
+                            if ((e.hash & n) == 0) {
+                                low = new Node<>(e.hash, e.key, e.value, low);
+                            } else {
+                                high = new Node<>(e.hash, e.key, e.value, high);
+                            }
+                        }
+                        next.set(i, low);
+                        next.set(i + n, high);
+                        tab.set(i, forwarding);
+                        advance = true;
+                    }
+                }
+            }
+        }
+    }
+
+    static class Node<K, V> {
+        final int hash;
+        final K key;
+        volatile V value;
+        volatile Node<K, V> next;
+
+        Node(int hash, K key, V value, Node<K, V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Placed in a bin of the old table once the bin has been moved to the next table.
+     */
+    static final class ForwardingNode<K, V> extends Node<K, V> {
+        final AtomicReferenceArray<Node<K, V>> nextTable;
+
+        ForwardingNode(AtomicReferenceArray<Node<K, V>> nextTable) {
+            super(MOVED, null, null, null);
+            this.nextTable = nextTable;
+        }
+    }
+
+    public static void main(String[] args) {
+        final int threads = 32;
+        final int keysPerThread = 50_000;
+        CasBinConcurrentKVStore<Integer, Integer> store = new CasBinConcurrentKVStore<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < keysPerThread; i++) {
+                    store.put(thread * keysPerThread + i, i);
+                }
+            });
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+
+        System.out.println("Inserted " + store.size() + " keys (expected " + threads * keysPerThread + ") in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        System.out.println("Key 12345: " + store.get(12345) + ", deleted: " + store.delete(12345)
+                + ", still present: " + store.containsKey(12345));
+    }
+}
@@ -0,0 +1,93 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counting Bloom filter with 4 bit counters, sixteen to a {@code long}, used by {@link SimpleConcurrentKVStore} to
+ * answer "definitely absent" without touching the store.
+ * <p>
+ * Counters rather than bits let keys be removed again. A counter that reaches 15 stays there, since its true count is
+ * no longer known; that only costs false positives, never false negatives, until the filter is rebuilt. Writes come from
+ * one thread at a time (the store lock holder); reads need no lock and see every increment published before the write
+ * that made the key visible.
+ */
+final class CountingBloomFilter {
+    private static final int HASHES = 4;
+    // About ten counters per expected entry keeps false positives near 1% with four hashes
+    private static final int COUNTERS_PER_ENTRY = 10;
+    private static final long MAX_COUNT = 15;
+
+    private final AtomicLongArray counters;
+    private final int mask;
+    private final int capacity;
+    private int size;
+
+    CountingBloomFilter(int expectedEntries) {
+        this.capacity = Math.max(16, expectedEntries);
+        int numberOfCounters = KVHashing.tableSizeFor(Math.max(64, this.capacity * COUNTERS_PER_ENTRY));
+        this.counters = new AtomicLongArray(numberOfCounters / 16);
+        this.mask = numberOfCounters - 1;
+    }
+
+    boolean mightContain(Object key) {
+        long hash = KVHashing.mix64(key.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int counter = (h1 + i * h2) & this.mask;
+            if (((this.counters.get(counter >>> 4) >>> ((counter & 15) << 2)) & 15) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Must only be called by the store lock holder.
+     */
+    void add(Object key) {
+        update(key, 1);
+        this.size++;
+    }
+
+    /**
+     * Must only be called by the store lock holder, for a key that was added.
+     */
+    void remove(Object key) {
+        update(key, -1);
+        this.size--;
+    }
+
+    /**
+     * @return true once more keys were added than the filter was sized for, so false positives start climbing
+     */
+    boolean isOverloaded() {
+        return this.size > this.capacity;
+    }
+
+    int capacity() {
+        return this.capacity;
+    }
+
+    int size() {
+        return this.size;
+    }
+
+    private void update(Object key, int delta) {
+        long hash = KVHashing.mix64(key.hashCode());
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int counter = (h1 + i * h2) & this.mask;
+            int word = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            long bits = this.counters.get(word);
+            long count = (bits >>> shift) & 15;
+            if (count == MAX_COUNT || (delta < 0 && count == 0)) {
+                // Saturated counters stick; an unknown count can't safely go down
+                continue;
+            }
+            this.counters.set(word, bits + ((long) delta << shift));
+        }
+    }
+}
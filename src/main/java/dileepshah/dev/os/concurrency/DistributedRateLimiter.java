@@ -0,0 +1,338 @@
+package dileepshah.dev.os.concurrency;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * DistributedRateLimiter enforces one limit per criterion across every node that runs it, by leasing batches of
+ * permits from a {@link RateLimitCoordinator} and serving requests out of them locally.
+ * <p>
+ * A request takes a permit from the local batch of its criterion with a compare-and-set, without talking to the
+ * coordinator. Once the batch is down to half, a renewal for another batch is sent in the background, so a criterion
+ * with steady traffic never waits for the network; only a request that finds the batch empty, typically the first of a
+ * criterion, waits for a lease. If the coordinator has nothing left to grant, requests are turned down locally for a
+ * short back-off before asking again.
+ * <p>
+ * Every permit a node uses was granted by the coordinator at most a lease time to live earlier, since batches older
+ * than that are dropped; so across the fleet the limit holds, shifted by at most that time. Permits left over in a
+ * batch when a renewal arrives stay usable, ahead of the new batch, until their own lease expires. While the
+ * coordinator has nothing to grant, no renewal is sent until the back-off is over. Renewals of all criteria go over one
+ * connection from a single thread. If the coordinator can't be reached, requests are turned down (the limiter fails
+ * closed) and the connection is re-established on the next renewal.
+ * <p>
+ * The batches are kept per criterion in a {@link SimpleCriterionBasedConcurrentRateLimiter}, so looking them up is
+ * lock-free and the batches of idle criteria are evicted. Criteria are sent to the coordinator by their
+ * {@code toString()}.
+ *
+ * @param <T> The type of access criteria used for the rate limiting.
+ */
+public class DistributedRateLimiter<T> implements AutoCloseable {
+    private final SimpleCriterionBasedConcurrentRateLimiter<T> leases;
+    private final InetSocketAddress coordinator;
+    private final int batchSize;
+    private final long leaseTtlNanos;
+    private final long backOffNanos;
+    private final ExecutorService renewer;
+    // Only used on the renewer thread
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+
+    /**
+     * @param coordinator The address of the coordinator.
+     * @param batchSize   How many permits to lease at a time; larger batches mean fewer leases, but more permits
+     *                    parked on a node that another node could have used.
+     * @param leaseTtl    How long a leased batch can be used, which bounds how far usage can lag behind the grants.
+     * @param unit        The unit of the lease time to live.
+     */
+    public DistributedRateLimiter(InetSocketAddress coordinator, int batchSize, long leaseTtl, TimeUnit unit) {
+        if (coordinator == null || unit == null) {
+            throw new IllegalArgumentException("Invalid coordinator address or time unit");
+        }
+        if (batchSize <= 0 || leaseTtl <= 0) {
+            throw new IllegalArgumentException("Batch size and lease time to live must be positive");
+        }
+        this.coordinator = coordinator;
+        this.batchSize = batchSize;
+        this.leaseTtlNanos = unit.toNanos(leaseTtl);
+        this.backOffNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(1), this.leaseTtlNanos / 8);
+        this.leases = new SimpleCriterionBasedConcurrentRateLimiter<>(
+                criterion -> new LeasedStrategy(String.valueOf(criterion)), Math.max(1, 4 * leaseTtl), unit, 1 << 20);
+        this.renewer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "rate-limit-lease-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Requests access based on the specified access criteria, against the fleet-wide limit of the criterion.
+     *
+     * @param accessCriteria The criteria for the access request.
+     * @return true if the request is allowed, false otherwise.
+     */
+    public boolean requestAccess(T accessCriteria) {
+        return this.leases.requestAccess(accessCriteria);
+    }
+
+    @Override
+    public void close() {
+        this.renewer.shutdownNow();
+        try {
+            this.renewer.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        disconnect();
+    }
+
+    /**
+     * Asks the coordinator for permits, connecting first if needed. Runs on the renewer thread only.
+     *
+     * @return the permits granted, 0 if there are none left or the coordinator can't be reached
+     */
+    private int lease(String criterion, int permits) {
+        try {
+            if (this.socket == null) {
+                this.socket = new Socket();
+                this.socket.connect(this.coordinator, (int) TimeUnit.NANOSECONDS.toMillis(this.leaseTtlNanos) + 1);
+                this.socket.setTcpNoDelay(true);
+                this.socket.setSoTimeout((int) TimeUnit.NANOSECONDS.toMillis(this.leaseTtlNanos) + 1);
+                this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+            }
+            this.out.writeInt(permits);
+            this.out.writeUTF(criterion);
+            this.out.flush();
+            return this.in.readInt();
+        } catch (IOException e) {
+            disconnect();
+            return 0;
+        }
+    }
+
+    private void disconnect() {
+        if (this.socket != null) {
+            try {
+                this.socket.close();
+            } catch (IOException ignored) {
+                // Already broken
+            }
+            this.socket = null;
+        }
+    }
+
+    /**
+     * Permits leased for one criterion, usable until the lease expires, and the batch before it if that still has
+     * permits under its own lease.
+     */
+    private static final class Batch {
+        static final Batch EMPTY = new Batch(0, Long.MIN_VALUE, null);
+
+        final AtomicInteger remaining;
+        final long expiresAt;
+        // Cleared once expired, so the chain doesn't grow with every renewal
+        volatile Batch carried;
+
+        Batch(int permits, long expiresAt, Batch carried) {
+            this.remaining = new AtomicInteger(permits);
+            this.expiresAt = expiresAt;
+            this.carried = carried;
+        }
+
+        boolean isLive(long now) {
+            return this != EMPTY && now - this.expiresAt < 0;
+        }
+
+        /**
+         * @return this batch if it still has permits under its lease, with its expired predecessors unlinked, or null
+         */
+        Batch live(long now) {
+            if (!isLive(now) || this.remaining.get() <= 0) {
+                return null;
+            }
+            Batch carried = this.carried;
+            if (carried != null) {
+                this.carried = carried.live(now);
+            }
+            return this;
+        }
+
+        /**
+         * Takes the permits from the oldest batch that has them, so carried-over permits are used before they expire.
+         */
+        boolean take(int permits, long now) {
+            Batch carried = this.carried;
+            if (carried != null && carried.take(permits, now)) {
+                return true;
+            }
+            if (!isLive(now)) {
+                return false;
+            }
+            for (;;) {
+                int current = this.remaining.get();
+                if (current < permits) {
+                    return false;
+                }
+                if (this.remaining.compareAndSet(current, current - permits)) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The local side of the fleet-wide limit of one criterion: takes permits from the current batch and renews it.
+     */
+    private final class LeasedStrategy implements RateLimitStrategy {
+        private final String criterion;
+        private final AtomicReference<Batch> batch;
+        // The renewal in flight, if any, so concurrent requests share it
+        private final AtomicReference<CompletableFuture<Void>> renewal;
+        private volatile long retryAt;
+
+        LeasedStrategy(String criterion) {
+            this.criterion = criterion;
+            this.batch = new AtomicReference<>(Batch.EMPTY);
+            this.renewal = new AtomicReference<>();
+            this.retryAt = System.nanoTime();
+        }
+
+        /**
+         * Takes the permits from the batch, waiting for a lease if the batch is empty. The permits either are there or
+         * aren't, so {@code maxWaitNanos} is not used.
+         *
+         * @return 0 if the permits were taken, -1 if the coordinator has none left or can't be reached
+         */
+        @Override
+        public long reserve(int permits, long maxWaitNanos) {
+            if (permits <= 0 || permits > batchSize) {
+                throw new IllegalArgumentException("Permits must be between 1 and " + batchSize);
+            }
+            for (boolean renewed = false; ; renewed = true) {
+                long now = System.nanoTime();
+                Batch current = this.batch.get();
+                if (current.take(permits, now)) {
+                    if (current.remaining.get() <= batchSize / 2 && now - this.retryAt >= 0) {
+                        renew();
+                    }
+                    return 0;
+                }
+                if (renewed || now - this.retryAt < 0) {
+                    return -1;
+                }
+                try {
+                    renew().get(leaseTtlNanos, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                } catch (ExecutionException | TimeoutException e) {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public void refund(int permits) {
+            this.batch.get().remaining.addAndGet(permits);
+        }
+
+        @Override
+        public long recoveryNanos() {
+            // The batch expires by then, and the limit itself is kept by the coordinator
+            return leaseTtlNanos;
+        }
+
+        /**
+         * @return the renewal in flight, after starting one if there was none
+         */
+        private CompletableFuture<Void> renew() {
+            for (;;) {
+                CompletableFuture<Void> inFlight = this.renewal.get();
+                if (inFlight != null) {
+                    return inFlight;
+                }
+                CompletableFuture<Void> started = new CompletableFuture<>();
+                if (this.renewal.compareAndSet(null, started)) {
+                    try {
+                        renewer.execute(() -> {
+                            try {
+                                install(lease(this.criterion, batchSize));
+                            } finally {
+                                this.renewal.set(null);
+                                started.complete(null);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // Closed
+                        this.renewal.set(null);
+                        started.complete(null);
+                    }
+                    return started;
+                }
+            }
+        }
+
+        private void install(int granted) {
+            long now = System.nanoTime();
+            if (granted == 0) {
+                this.retryAt = now + backOffNanos;
+                return;
+            }
+            // Permits left in the previous batches keep their own, earlier expiry
+            this.batch.set(new Batch(granted, now + leaseTtlNanos, this.batch.get().live(now)));
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        // One fleet-wide limit of 200 requests per second per criterion, bursts of up to 200
+        try (RateLimitCoordinator coordinator = new RateLimitCoordinator(new InetSocketAddress("127.0.0.1", 0),
+                () -> RateLimitStrategy.gcra(1000, 200))) {
+            final int nodes = 3;
+            AtomicInteger[] allowed = new AtomicInteger[nodes];
+            ExecutorService executor = Executors.newFixedThreadPool(nodes);
+            for (int n = 0; n < nodes; n++) {
+                final int node = n;
+                allowed[n] = new AtomicInteger();
+                executor.execute(() -> {
+                    // Each node would normally be its own process
+                    try (DistributedRateLimiter<String> rateLimiter = new DistributedRateLimiter<>(
+                            coordinator.address(), 10, 100, TimeUnit.MILLISECONDS)) {
+                        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+                        while (System.nanoTime() < end) {
+                            if (rateLimiter.requestAccess("api")) {
+                                allowed[node].incrementAndGet();
+                            }
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            if (!executor.awaitTermination(8000, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+
+            int total = 0;
+            for (int n = 0; n < nodes; n++) {
+                System.out.println("Node " + n + " was allowed " + allowed[n].get() + " requests.");
+                total += allowed[n].get();
+            }
+            // The burst of 200 plus 2 seconds at 200 per second, whatever the number of nodes
+            System.out.println("Allowed " + total + " in total (at most 600).");
+        }
+    }
+}
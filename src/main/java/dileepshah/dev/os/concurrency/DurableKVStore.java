@@ -0,0 +1,783 @@
+package dileepshah.dev.os.concurrency;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Segmented concurrent KV store that survives restarts.
+ * <p>
+ * Every segment appends its mutations to its own write-ahead log. A mutation is encoded into the segment's pending
+ * buffer and then applied in memory under the segment lock; the caller then waits until its record is on disk. The
+ * first waiter to get the flush lock writes and fsyncs everything pending, so concurrent writers share one fsync (group
+ * commit) and the log is only ever written sequentially.
+ * <p>
+ * A snapshot rotates every segment to a new log generation and writes the segment contents as of the rotation into a
+ * flat, checksummed snapshot file. On startup each segment memory-maps its newest valid snapshot and replays only the
+ * logs written after it. Files are named {@code segment-<index>-<generation>.snap|wal}; a snapshot of generation g
+ * holds the state at the start of the log of generation g.
+ * <p>
+ * If writing or syncing a segment's log fails, the segment is marked failed: the records that were pending may be lost
+ * or torn on disk, so their mutations are undone in memory, newest first, and the writers waiting for them, and every
+ * later write or flush of the segment, get the error instead of a durability the log can't back up. Reopening the
+ * store recovers what made it to disk. A failed background snapshot is reported and retried at the next interval.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public final class DurableKVStore<K, V> implements AutoCloseable {
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int SNAPSHOT_MAGIC = 0x4b56534e;
+    private static final int SNAPSHOT_HEADER = 20;
+    // Snapshots are read through mappings of at most this size, so their size isn't limited to one buffer
+    private static final long SNAPSHOT_CHUNK = 1L << 30;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final String META_FILE = "store.meta";
+    private static final Pattern FILE_PATTERN = Pattern.compile("segment-(\\d+)-(\\d+)\\.(wal|snap)");
+
+    private final Path directory;
+    private final Codec<K> keyCodec;
+    private final Codec<V> valueCodec;
+    private final Segment<K, V>[] segments;
+    private final int numberOfSegments;
+    private final Thread snapshotThread;
+    private final CountDownLatch closeSignal;
+    private volatile boolean closed;
+
+    /**
+     * Opens the store in the directory, recovering any state left by a previous run.
+     *
+     * @param directory              the directory holding the logs and snapshots
+     * @param numberOfSegments       the number of segments, must stay the same across restarts
+     * @param keyCodec               serialises the keys
+     * @param valueCodec             serialises the values
+     * @param snapshotIntervalMillis how often a background thread takes a snapshot, 0 to only snapshot on demand
+     */
+    @SuppressWarnings({"unchecked", "this-escape"})
+    public DurableKVStore(Path directory, int numberOfSegments, Codec<K> keyCodec, Codec<V> valueCodec,
+                          long snapshotIntervalMillis) {
+        if (numberOfSegments <= 0 || snapshotIntervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid number of segments or snapshot interval");
+        }
+        this.directory = directory;
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.numberOfSegments = numberOfSegments;
+        this.segments = (Segment<K, V>[]) new Segment<?, ?>[numberOfSegments];
+        this.closeSignal = new CountDownLatch(1);
+        try {
+            Files.createDirectories(directory);
+            checkSegmentCount();
+            for (int i = 0; i < numberOfSegments; i++) {
+                this.segments[i] = recover(i);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (snapshotIntervalMillis > 0) {
+            this.snapshotThread = new Thread(() -> runSnapshots(snapshotIntervalMillis), "kv-snapshot");
+            this.snapshotThread.setDaemon(true);
+            this.snapshotThread.start();
+        } else {
+            this.snapshotThread = null;
+        }
+    }
+
+    public DurableKVStore(Path directory, Codec<K> keyCodec, Codec<V> valueCodec) {
+        this(directory, DEFAULT_SEGMENTS, keyCodec, valueCodec, 0);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public V get(K key) {
+        V value = getOrNull(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+        }
+        return value;
+    }
+
+    public V getOrNull(K key) {
+        Segment<K, V> segment = nullCheckAndGetSegment(key);
+        segment.lock.lock();
+        try {
+            return segment.map.get(key);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public boolean containsKey(K key) {
+        return key != null && getOrNull(key) != null;
+    }
+
+    /**
+     * Applies the put and returns once it is durable in the segment's write-ahead log.
+     *
+     * @return the previous value mapped to the key, or null if there was none
+     */
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        Segment<K, V> segment = nullCheckAndGetSegment(key);
+        byte[] keyBytes = this.keyCodec.encode(key);
+        byte[] valueBytes = this.valueCodec.encode(value);
+        V previous;
+        long lsn;
+        segment.lock.lock();
+        try {
+            ensureOpen();
+            segment.checkHealthy();
+            lsn = segment.append(PUT, keyBytes, valueBytes);
+            previous = segment.apply(lsn, key, value);
+        } finally {
+            segment.lock.unlock();
+        }
+        segment.awaitDurable(lsn);
+        return previous;
+    }
+
+    /**
+     * Removes the key and returns once the removal is durable in the segment's write-ahead log.
+     *
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public V delete(K key) {
+        Segment<K, V> segment = nullCheckAndGetSegment(key);
+        byte[] keyBytes = this.keyCodec.encode(key);
+        V previous;
+        long lsn;
+        segment.lock.lock();
+        try {
+            ensureOpen();
+            segment.checkHealthy();
+            if (!segment.map.containsKey(key)) {
+                throw new IllegalArgumentException("Invalid key or it doesn't exist");
+            }
+            lsn = segment.append(DELETE, keyBytes, null);
+            previous = segment.apply(lsn, key, null);
+        } finally {
+            segment.lock.unlock();
+        }
+        segment.awaitDurable(lsn);
+        return previous;
+    }
+
+    /**
+     * Takes a consistent snapshot of every segment and deletes the logs and snapshots it supersedes. Each segment is
+     * only locked while its entries are copied and its log is rotated; the snapshot file is written afterwards.
+     */
+    public void snapshot() {
+        ensureOpen();
+        for (Segment<K, V> segment : this.segments) {
+            try {
+                segment.snapshot(this.directory, this.keyCodec, this.valueCodec);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Waits for a running snapshot, flushes pending log records and closes the log files. A new snapshot isn't taken;
+     * the next start replays the logs.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.closeSignal.countDown();
+        if (this.snapshotThread != null) {
+            try {
+                // Not interrupted: an interrupt during file I/O would close the channel under the snapshot.
+                this.snapshotThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Segment<K, V> segment : this.segments) {
+            segment.close();
+        }
+    }
+
+    private void ensureOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+
+    private Segment<K, V> nullCheckAndGetSegment(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        return this.segments[KVHashing.segmentFor(KVHashing.mix32(key.hashCode()), this.numberOfSegments)];
+    }
+
+    private void runSnapshots(long intervalMillis) {
+        try {
+            while (!this.closeSignal.await(intervalMillis, TimeUnit.MILLISECONDS)) {
+                try {
+                    snapshot();
+                } catch (UncheckedIOException e) {
+                    // The logs keep every write meanwhile, so the next interval can simply try again
+                    System.err.println("Snapshot failed, retrying in " + intervalMillis + " ms: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkSegmentCount() throws IOException {
+        Path meta = this.directory.resolve(META_FILE);
+        if (Files.exists(meta)) {
+            int stored = Integer.parseInt(Files.readString(meta).trim());
+            if (stored != this.numberOfSegments) {
+                throw new IllegalStateException("Store was created with " + stored + " segments, not "
+                        + this.numberOfSegments);
+            }
+        } else {
+            Files.writeString(meta, Integer.toString(this.numberOfSegments));
+        }
+    }
+
+    /**
+     * Loads the newest valid snapshot of the segment, replays the logs written since, and opens a fresh log
+     * generation for new writes.
+     */
+    private Segment<K, V> recover(int index) throws IOException {
+        TreeSet<Integer> snapshots = new TreeSet<>();
+        TreeSet<Integer> logs = new TreeSet<>();
+        try (var files = Files.list(this.directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Matcher matcher = FILE_PATTERN.matcher(file.getFileName().toString());
+                if (matcher.matches() && Integer.parseInt(matcher.group(1)) == index) {
+                    (matcher.group(3).equals("wal") ? logs : snapshots).add(Integer.parseInt(matcher.group(2)));
+                }
+            }
+        }
+
+        Map<K, V> map = new HashMap<>();
+        int snapshotGeneration = 0;
+        for (Integer generation : snapshots.descendingSet()) {
+            if (loadSnapshot(fileName(index, generation, "snap"), map)) {
+                snapshotGeneration = generation;
+                break;
+            }
+            map.clear();
+        }
+        for (Integer generation : logs.tailSet(snapshotGeneration, true)) {
+            replayLog(fileName(index, generation, "wal"), map);
+        }
+
+        int nextGeneration = Math.max(logs.isEmpty() ? 0 : logs.last(), snapshotGeneration) + 1;
+        return new Segment<>(index, map, nextGeneration, openLog(fileName(index, nextGeneration, "wal")));
+    }
+
+    private boolean loadSnapshot(Path file, Map<K, V> map) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < SNAPSHOT_HEADER) {
+                return false;
+            }
+            ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    return false;
+                }
+            }
+            header.flip();
+            if (header.getInt() != SNAPSHOT_MAGIC) {
+                return false;
+            }
+            int entryCount = header.getInt();
+            long bodyLength = header.getLong();
+            int checksum = header.getInt();
+            if (bodyLength != size - SNAPSHOT_HEADER) {
+                return false;
+            }
+            CRC32 crc = new CRC32();
+            for (long position = SNAPSHOT_HEADER; position < size; position += SNAPSHOT_CHUNK) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(SNAPSHOT_CHUNK, size - position)));
+            }
+            if ((int) crc.getValue() != checksum) {
+                return false;
+            }
+            SnapshotReader reader = new SnapshotReader(channel, SNAPSHOT_HEADER, size);
+            for (int i = 0; i < entryCount; i++) {
+                byte[] key = reader.readBytes();
+                byte[] value = reader.readBytes();
+                map.put(this.keyCodec.decode(key), this.valueCodec.decode(value));
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads a snapshot body through a window mapped over part of the file, mapping the next window when a read runs
+     * past the current one.
+     */
+    private static final class SnapshotReader {
+        private final FileChannel channel;
+        private final long end;
+        // The file offset of the next byte to read
+        private long position;
+        private MappedByteBuffer window;
+
+        SnapshotReader(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        byte[] readBytes() throws IOException {
+            int length = require(4).getInt();
+            if (length < 0) {
+                throw new IOException("Corrupt snapshot entry length " + length);
+            }
+            byte[] bytes = new byte[length];
+            require(length).get(bytes);
+            return bytes;
+        }
+
+        /**
+         * @return the window, positioned at the next byte and holding at least the given number of bytes
+         */
+        private ByteBuffer require(int bytes) throws IOException {
+            if (this.window == null || this.window.remaining() < bytes) {
+                if (this.end - this.position < bytes) {
+                    throw new EOFException("Snapshot ends in the middle of an entry");
+                }
+                this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, this.position,
+                        Math.max(bytes, Math.min(SNAPSHOT_CHUNK, this.end - this.position)));
+            }
+            this.position += bytes;
+            return this.window;
+        }
+    }
+
+    /**
+     * Replays records until the end of the log or the first torn or corrupt record, which marks where a crash
+     * interrupted the last write.
+     */
+    private void replayLog(Path file, Map<K, V> map) throws IOException {
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file));
+        CRC32 crc = new CRC32();
+        while (log.remaining() >= 8) {
+            int length = log.getInt();
+            int checksum = log.getInt();
+            if (length <= 0 || length > log.remaining()) {
+                return;
+            }
+            ByteBuffer record = log.slice(log.position(), length);
+            crc.reset();
+            crc.update(record.duplicate());
+            if ((int) crc.getValue() != checksum) {
+                return;
+            }
+            log.position(log.position() + length);
+            byte op = record.get();
+            K key = this.keyCodec.decode(readBytes(record));
+            if (op == PUT) {
+                map.put(key, this.valueCodec.decode(readBytes(record)));
+            } else {
+                map.remove(key);
+            }
+        }
+    }
+
+    private Path fileName(int index, int generation, String extension) {
+        return this.directory.resolve(String.format("segment-%d-%08d.%s", index, generation, extension));
+    }
+
+    private static FileChannel openLog(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * One segment: the in-memory map, its write-ahead log and the group commit state. The lock guards the map, the
+     * pending buffer and the log sequence; the flush lock serialises writing to the log file. When both are needed the
+     * flush lock is taken first.
+     */
+    private static final class Segment<K, V> {
+        private final Lock lock = new ReentrantLock();
+        private final Lock flushLock = new ReentrantLock();
+        private final int index;
+        private final Map<K, V> map;
+        private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        private final CRC32 crc = new CRC32();
+        // What each record that isn't durable yet replaced in the map, oldest first, to undo it if the log fails
+        private final ArrayDeque<Undo<K, V>> undo = new ArrayDeque<>();
+        private long appendedLsn;
+        private volatile long durableLsn;
+        // Set once writing the log failed; the segment then refuses writes and flushes
+        private volatile IOException failure;
+        private int generation;
+        private FileChannel log;
+
+        Segment(int index, Map<K, V> map, int generation, FileChannel log) {
+            this.index = index;
+            this.map = map;
+            this.generation = generation;
+            this.log = log;
+        }
+
+        /**
+         * Encodes a record as {@code [length][crc][op][keyLength][key]([valueLength][value])} into the pending buffer.
+         * Must be called with the lock held.
+         *
+         * @return the log sequence number of the record
+         */
+        long append(byte op, byte[] key, byte[] value) {
+            int length = 1 + 4 + key.length + (value == null ? 0 : 4 + value.length);
+            ByteBuffer record = ByteBuffer.allocate(8 + length);
+            record.putInt(length).putInt(0).put(op).putInt(key.length).put(key);
+            if (value != null) {
+                record.putInt(value.length).put(value);
+            }
+            this.crc.reset();
+            this.crc.update(record.array(), 8, length);
+            record.putInt(4, (int) this.crc.getValue());
+            this.pending.write(record.array(), 0, record.capacity());
+            return ++this.appendedLsn;
+        }
+
+        /**
+         * Applies an appended record to the map, remembering what it replaced until the record is durable. Must be
+         * called with the lock held.
+         *
+         * @param value the new value, or null to remove the key
+         * @return the previous value mapped to the key
+         */
+        V apply(long lsn, K key, V value) {
+            V previous = value == null ? this.map.remove(key) : this.map.put(key, value);
+            this.undo.addLast(new Undo<>(lsn, key, previous));
+            return previous;
+        }
+
+        /**
+         * @throws UncheckedIOException if writing the log failed, so new writes can't be made durable
+         */
+        void checkHealthy() {
+            IOException failure = this.failure;
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log of segment " + this.index + " failed", failure);
+            }
+        }
+
+        /**
+         * Blocks until the record with the given sequence number is on disk. Whoever holds the flush lock writes
+         * every record appended so far, so writers queued behind it usually find their record already durable.
+         */
+        void awaitDurable(long lsn) {
+            if (this.durableLsn >= lsn) {
+                return;
+            }
+            this.flushLock.lock();
+            try {
+                if (this.durableLsn >= lsn) {
+                    return;
+                }
+                flushPending();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                this.flushLock.unlock();
+            }
+        }
+
+        /**
+         * Must be called with the flush lock held.
+         *
+         * @throws UncheckedIOException if writing the log failed, now or before
+         */
+        private void flushPending() throws IOException {
+            checkHealthy();
+            byte[] batch;
+            long batchLsn;
+            this.lock.lock();
+            try {
+                batch = this.pending.toByteArray();
+                this.pending.reset();
+                batchLsn = this.appendedLsn;
+            } finally {
+                this.lock.unlock();
+            }
+            if (batch.length > 0) {
+                writeAndForce(batch);
+            }
+            this.lock.lock();
+            try {
+                settle(batchLsn);
+            } finally {
+                this.lock.unlock();
+            }
+        }
+
+        /**
+         * Marks the records up to the sequence number durable. Must be called with the lock held.
+         */
+        private void settle(long lsn) {
+            while (!this.undo.isEmpty() && this.undo.peekFirst().lsn <= lsn) {
+                this.undo.pollFirst();
+            }
+            this.durableLsn = lsn;
+        }
+
+        void snapshot(Path directory, Codec<K> keyCodec, Codec<V> valueCodec) throws IOException {
+            List<Map.Entry<K, V>> entries;
+            int snapshotGeneration;
+            this.flushLock.lock();
+            try {
+                flushPending();
+                this.lock.lock();
+                try {
+                    // Nothing can be appended while the lock is held, so the copy matches the rotated log exactly.
+                    entries = new ArrayList<>(this.map.entrySet().size());
+                    for (Map.Entry<K, V> entry : this.map.entrySet()) {
+                        entries.add(Map.entry(entry.getKey(), entry.getValue()));
+                    }
+                    flushPendingLocked();
+                    this.log.close();
+                    snapshotGeneration = ++this.generation;
+                    this.log = openLog(directory.resolve(
+                            String.format("segment-%d-%08d.wal", this.index, snapshotGeneration)));
+                } finally {
+                    this.lock.unlock();
+                }
+            } finally {
+                this.flushLock.unlock();
+            }
+
+            Path target = directory.resolve(String.format("segment-%d-%08d.snap", this.index, snapshotGeneration));
+            writeSnapshot(target, entries, keyCodec, valueCodec);
+            deleteOlderThan(directory, snapshotGeneration);
+        }
+
+        /**
+         * Writes whatever was appended between {@link #flushPending()} and taking the lock. Must be called with both
+         * locks held.
+         */
+        private void flushPendingLocked() throws IOException {
+            if (this.pending.size() > 0) {
+                writeAndForce(this.pending.toByteArray());
+                this.pending.reset();
+            }
+            settle(this.appendedLsn);
+        }
+
+        /**
+         * Writes and syncs a batch taken out of the pending buffer. If that fails, part of the batch may be on disk
+         * and the rest lost, so the segment is marked failed rather than the batch retried behind a torn record, and
+         * every mutation that isn't durable is undone so readers don't see writes the log lost.
+         */
+        private void writeAndForce(byte[] batch) throws IOException {
+            try {
+                writeFully(this.log, ByteBuffer.wrap(batch));
+                this.log.force(false);
+            } catch (IOException e) {
+                this.lock.lock();
+                try {
+                    this.failure = e;
+                    while (!this.undo.isEmpty()) {
+                        Undo<K, V> last = this.undo.pollLast();
+                        if (last.previous == null) {
+                            this.map.remove(last.key);
+                        } else {
+                            this.map.put(last.key, last.previous);
+                        }
+                    }
+                } finally {
+                    this.lock.unlock();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Streams the entries into the snapshot file after a header placeholder, checksumming them on the way, and
+         * fills in the header at the end, so the snapshot is never held in memory as a whole.
+         */
+        private void writeSnapshot(Path target, List<Map.Entry<K, V>> entries, Codec<K> keyCodec,
+                                   Codec<V> valueCodec) throws IOException {
+            Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                CRC32 checksum = new CRC32();
+                long bodyLength = 0;
+                channel.position(SNAPSHOT_HEADER);
+                // Not closed, since that would close the channel before the header is written
+                DataOutputStream body = new DataOutputStream(new CheckedOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), checksum));
+                for (Map.Entry<K, V> entry : entries) {
+                    byte[][] encoded = {keyCodec.encode(entry.getKey()), valueCodec.encode(entry.getValue())};
+                    for (byte[] bytes : encoded) {
+                        body.writeInt(bytes.length);
+                        body.write(bytes);
+                        bodyLength += 4 + bytes.length;
+                    }
+                }
+                body.flush();
+                ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER);
+                header.putInt(SNAPSHOT_MAGIC).putInt(entries.size()).putLong(bodyLength)
+                        .putInt((int) checksum.getValue()).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(true);
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private void deleteOlderThan(Path directory, int snapshotGeneration) throws IOException {
+            try (var files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Matcher matcher = FILE_PATTERN.matcher(file.getFileName().toString());
+                    if (matcher.matches() && Integer.parseInt(matcher.group(1)) == this.index
+                            && Integer.parseInt(matcher.group(2)) < snapshotGeneration) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+
+        void close() {
+            this.flushLock.lock();
+            try {
+                try {
+                    flushPending();
+                } finally {
+                    this.log.close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                this.flushLock.unlock();
+            }
+        }
+    }
+
+    private static final class Undo<K, V> {
+        private final long lsn;
+        private final K key;
+        private final V previous;
+
+        Undo(long lsn, K key, V previous) {
+            this.lsn = lsn;
+            this.key = key;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Converts keys or values to and from the bytes stored in the logs and snapshots.
+     *
+     * @param <T> the type to convert
+     */
+    public interface Codec<T> {
+        byte[] encode(T value);
+
+        T decode(byte[] bytes);
+
+        static Codec<String> utf8() {
+            return new Codec<>() {
+                @Override
+                public byte[] encode(String value) {
+                    return value.getBytes(StandardCharsets.UTF_8);
+                }
+
+                @Override
+                public String decode(byte[] bytes) {
+                    return new String(bytes, StandardCharsets.UTF_8);
+                }
+            };
+        }
+
+        static Codec<Long> longs() {
+            return new Codec<>() {
+                @Override
+                public byte[] encode(Long value) {
+                    return ByteBuffer.allocate(8).putLong(value).array();
+                }
+
+                @Override
+                public Long decode(byte[] bytes) {
+                    return ByteBuffer.wrap(bytes).getLong();
+                }
+            };
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("durable-kv");
+
+        DurableKVStore<String, Long> store = new DurableKVStore<>(directory, Codec.utf8(), Codec.longs());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            executor.execute(() -> {
+                for (long i = 0; i < 1_000; i++) {
+                    store.put("key-" + thread + "-" + i, i);
+                }
+            });
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            executor.shutdownNow();
+        }
+        store.snapshot();
+        store.put("after-snapshot", 42L);
+        store.delete("key-0-0");
+        store.close();
+
+        long start = System.nanoTime();
+        DurableKVStore<String, Long> reopened = new DurableKVStore<>(directory, Codec.utf8(), Codec.longs());
+        System.out.println("Recovered in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        System.out.println("key-7-999: " + reopened.get("key-7-999") + ", after-snapshot: "
+                + reopened.get("after-snapshot") + ", key-0-0 present: " + reopened.containsKey("key-0-0"));
+        reopened.close();
+    }
+}
@@ -0,0 +1,71 @@
+package dileepshah.dev.os.concurrency;
+
+/**
+ * Count-min sketch of 4-bit counters used by {@link BoundedConcurrentKVStore} to estimate how often a key was seen
+ * recently (the TinyLFU admission filter). Sixteen counters are packed into every {@code long}; each key is counted in
+ * four of them and its frequency is the minimum. Once the number of increments reaches the sample size every counter
+ * is halved, so old popularity fades. Not thread safe, the owner guards it with its eviction lock.
+ */
+final class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedEntries the number of entries the cache is expected to hold
+     */
+    FrequencySketch(long expectedEntries) {
+        int tableSize = KVHashing.tableSizeFor((int) Math.min(Math.max(expectedEntries, 16), 1 << 20));
+        this.table = new long[tableSize];
+        this.tableMask = tableSize - 1;
+        this.sampleSize = 10 * tableSize;
+    }
+
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < 4; i++) {
+            long h = spread(hash, i);
+            int index = (int) h & this.tableMask;
+            int shift = counterShift(h);
+            frequency = Math.min(frequency, (int) ((this.table[index] >>> shift) & 0xfL));
+        }
+        return frequency;
+    }
+
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            long h = spread(hash, i);
+            int index = (int) h & this.tableMask;
+            int shift = counterShift(h);
+            if (((this.table[index] >>> shift) & 0xfL) < MAX_COUNT) {
+                this.table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++this.additions == this.sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < this.table.length; i++) {
+            this.table[i] = (this.table[i] >>> 1) & RESET_MASK;
+        }
+        this.additions >>>= 1;
+    }
+
+    private static long spread(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        return h + (h >>> 32);
+    }
+
+    private static int counterShift(long h) {
+        return (int) ((h >>> 40) & 0xf) << 2;
+    }
+}
@@ -0,0 +1,63 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generic cell rate algorithm: the whole state is the theoretical arrival time (TAT), the time at which the next
+ * request would be on schedule if requests came exactly one emission interval apart.
+ * <p>
+ * A request is admitted unless the TAT is more than the burst tolerance ahead of now, and each admission pushes the
+ * TAT one interval further, starting from now if it had fallen behind. That gives a smooth rate with bursts of up to
+ * {@code burstCapacity} after an idle period, in one {@link AtomicLong} updated with compare-and-set. A reservation
+ * is the same update made ahead of time: the TAT moves past now, and whoever comes next is measured against it.
+ */
+final class GcraRateLimitStrategy implements RateLimitStrategy {
+    private final AtomicLong theoreticalArrival;
+    private final long emissionIntervalNanos;
+    private final long toleranceNanos;
+    private final long burstCapacity;
+
+    GcraRateLimitStrategy(long requestRange, long allowedNoOfRequests, long burstCapacity) {
+        if (requestRange <= 0 || allowedNoOfRequests <= 0 || burstCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid request range, allowed number of requests or burst capacity");
+        }
+        this.emissionIntervalNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(requestRange) / allowedNoOfRequests);
+        this.toleranceNanos = (burstCapacity - 1) * this.emissionIntervalNanos;
+        this.burstCapacity = burstCapacity;
+        this.theoreticalArrival = new AtomicLong(System.nanoTime());
+    }
+
+    @Override
+    public long reserve(int permits, long maxWaitNanos) {
+        if (permits <= 0 || permits > this.burstCapacity) {
+            throw new IllegalArgumentException("Permits must be between 1 and " + this.burstCapacity);
+        }
+        long now = System.nanoTime();
+        for (;;) {
+            long current = this.theoreticalArrival.get();
+            long scheduled = current - now > 0 ? current : now;
+            long next = scheduled + permits * this.emissionIntervalNanos;
+            // The last of the permits conforms once the TAT after it is within the tolerance
+            long wait = Math.max(0, next - this.emissionIntervalNanos - this.toleranceNanos - now);
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            if (this.theoreticalArrival.compareAndSet(current, next)) {
+                return wait;
+            }
+        }
+    }
+
+    @Override
+    public void refund(int permits) {
+        // A TAT left behind now is as good as now, so there's no need to clamp it
+        this.theoreticalArrival.addAndGet(-permits * this.emissionIntervalNanos);
+    }
+
+    @Override
+    public long recoveryNanos() {
+        // The TAT is at most one burst ahead of the last admission
+        return this.burstCapacity * this.emissionIntervalNanos;
+    }
+}
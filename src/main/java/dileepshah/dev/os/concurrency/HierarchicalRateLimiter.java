@@ -0,0 +1,201 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * HierarchicalRateLimiter applies several limits to each request at once, e.g. per IP, per tenant and global, and
+ * admits it only if every one of them does.
+ * <p>
+ * Each tier is a {@link SimpleCriterionBasedConcurrentRateLimiter} plus a function that picks the tier's criterion
+ * out of the request; a tier whose function returns null doesn't apply to the request. The permits are reserved from
+ * the applicable tiers in the order they were added, and if one of them turns the request down, the permits already
+ * reserved from the tiers before it are refunded. So a request counts against all of its limits or none, and a
+ * request rejected by the tenant limit doesn't use up the IP limit the way chained limiters would.
+ * <p>
+ * There is no lock across tiers. Between a reservation and its refund, other requests can see the permits as taken
+ * and be turned down, so tiers are best added from the most to the least specific: most rejections then happen at the
+ * first tier, before anything needs refunding. With {@link RateLimitStrategy#gcra(long, long)} or
+ * {@link TokenBucketRateLimiter} as the strategies, every tier is updated with a single compare-and-set.
+ *
+ * @param <R> The type of the requests.
+ */
+public class HierarchicalRateLimiter<R> {
+    // Copied on write, so requests read the tiers without locking
+    private volatile Tier<R, ?>[] tiers;
+
+    @SuppressWarnings("unchecked")
+    public HierarchicalRateLimiter() {
+        this.tiers = (Tier<R, ?>[]) new Tier<?, ?>[0];
+    }
+
+    /**
+     * Adds a tier, checked after the ones added before. Tiers are meant to be set up before the limiter is used.
+     *
+     * @param criterion Picks the criterion of the tier out of a request, or returns null if the tier doesn't apply.
+     * @param limiter   The limits of the tier.
+     * @return this limiter
+     */
+    public synchronized <K> HierarchicalRateLimiter<R> addTier(Function<? super R, ? extends K> criterion,
+                                                               SimpleCriterionBasedConcurrentRateLimiter<K> limiter) {
+        if (criterion == null || limiter == null) {
+            throw new IllegalArgumentException("Invalid criterion or limiter");
+        }
+        Tier<R, ?>[] extended = Arrays.copyOf(this.tiers, this.tiers.length + 1);
+        extended[this.tiers.length] = new Tier<>(criterion, limiter);
+        this.tiers = extended;
+        return this;
+    }
+
+    /**
+     * @return true if every applicable tier admitted the request, false if any turned it down
+     */
+    public boolean requestAccess(R request) {
+        return reserve(request, 1, 0) == 0;
+    }
+
+    /**
+     * @param permits The number of permits, at most what the smallest applicable limit admits at once.
+     * @return true if every applicable tier admitted the request, false if any turned it down
+     */
+    public boolean requestAccess(R request, int permits) {
+        return reserve(request, permits, 0) == 0;
+    }
+
+    /**
+     * Waits for the permits if every applicable tier can grant them within the timeout, and takes none otherwise.
+     *
+     * @param permits The number of permits, at most what the smallest applicable limit admits at once.
+     * @return true if the permits were acquired, false if they wouldn't be available in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean tryAcquire(R request, int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        long wait = reserve(request, permits, unit.toNanos(timeout));
+        if (wait < 0) {
+            return false;
+        }
+        SimpleGenericConcurrentRateLimiter.awaitNanos(wait);
+        return true;
+    }
+
+    /**
+     * Reserves the permits from every applicable tier, or from none.
+     *
+     * @return the nanoseconds until the slowest tier grants the permits, or -1 if one of them wouldn't in time
+     */
+    private long reserve(R request, int permits, long maxWaitNanos) {
+        if (request == null) {
+            throw new IllegalArgumentException("Invalid request");
+        }
+        Tier<R, ?>[] tiers = this.tiers;
+        Object[] criteria = new Object[tiers.length];
+        long wait = 0;
+        int i = 0;
+        try {
+            for (; i < tiers.length; i++) {
+                criteria[i] = tiers[i].criterion.apply(request);
+                if (criteria[i] == null) {
+                    continue;
+                }
+                long tierWait = tiers[i].reserve(criteria[i], permits, maxWaitNanos);
+                if (tierWait < 0) {
+                    refund(tiers, criteria, i, permits);
+                    return -1;
+                }
+                wait = Math.max(wait, tierWait);
+            }
+        } catch (RuntimeException e) {
+            // E.g. more permits than a later tier admits at once; the earlier tiers must not keep theirs
+            refund(tiers, criteria, i, permits);
+            throw e;
+        }
+        return wait;
+    }
+
+    /**
+     * Gives the permits back to the applicable tiers before the given one, latest first.
+     */
+    private static void refund(Tier<?, ?>[] tiers, Object[] criteria, int before, int permits) {
+        for (int j = before - 1; j >= 0; j--) {
+            if (criteria[j] != null) {
+                tiers[j].refund(criteria[j], permits);
+            }
+        }
+    }
+
+    /**
+     * One level of the hierarchy; keeps the criterion and limiter types together.
+     */
+    private static final class Tier<R, K> {
+        final Function<? super R, ? extends K> criterion;
+        final SimpleCriterionBasedConcurrentRateLimiter<K> limiter;
+
+        Tier(Function<? super R, ? extends K> criterion, SimpleCriterionBasedConcurrentRateLimiter<K> limiter) {
+            this.criterion = criterion;
+            this.limiter = limiter;
+        }
+
+        @SuppressWarnings("unchecked")
+        long reserve(Object criterion, int permits, long maxWaitNanos) {
+            return this.limiter.reserve((K) criterion, permits, maxWaitNanos);
+        }
+
+        @SuppressWarnings("unchecked")
+        void refund(Object criterion, int permits) {
+            this.limiter.refund((K) criterion, permits);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // Up to 20 requests per second per IP, 30 per tenant and 40 overall
+        HierarchicalRateLimiter<String[]> rateLimiter = new HierarchicalRateLimiter<String[]>()
+                .addTier(request -> request[0], new SimpleCriterionBasedConcurrentRateLimiter<>(
+                        () -> RateLimitStrategy.gcra(1000, 20)))
+                .addTier(request -> request[1], new SimpleCriterionBasedConcurrentRateLimiter<>(
+                        () -> RateLimitStrategy.gcra(1000, 30)))
+                .addTier(request -> "global", new SimpleCriterionBasedConcurrentRateLimiter<>(
+                        () -> RateLimitStrategy.gcra(1000, 40)));
+
+        // Two tenants with two IPs each
+        String[][] clients = {
+                {"192.168.0.1", "tenant-a"}, {"192.168.0.2", "tenant-a"},
+                {"192.168.0.3", "tenant-b"}, {"192.168.0.4", "tenant-b"}
+        };
+        AtomicInteger[] allowed = new AtomicInteger[clients.length];
+        ExecutorService executor = Executors.newFixedThreadPool(clients.length);
+        for (int c = 0; c < clients.length; c++) {
+            final int client = c;
+            allowed[c] = new AtomicInteger();
+            executor.execute(() -> {
+                long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+                while (System.nanoTime() < end) {
+                    if (rateLimiter.requestAccess(clients[client])) {
+                        allowed[client].incrementAndGet();
+                    }
+                    try {
+                        Thread.sleep(5);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(8000, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+
+        // The global limit binds first: all four together get its burst of 40 plus 40 / s, and no tenant more than 30 / s
+        int total = 0;
+        for (int c = 0; c < clients.length; c++) {
+            System.out.println(clients[c][0] + " (" + clients[c][1] + ") was allowed " + allowed[c].get() + " times.");
+            total += allowed[c].get();
+        }
+        System.out.println("Allowed " + total + " in total (at most 120).");
+    }
+}
@@ -1,24 +1,68 @@
 package dileepshah.dev.os.concurrency;
 
-import java.util.Objects;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class ImprovedSimpleConcurrentKVStore<K,V> {
     private static final int DEFAULT_SEGMENTS = 16;
+    // Batches at least this large process their segments on the common fork-join pool.
+    private static final int PARALLEL_BATCH_THRESHOLD = 1024;
     private final SimpleConcurrentKVStore<K, V>[] segments;
     private final int numberOfSegments;
+    private volatile SpaceSavingTracker<K> hotKeys;
+    private volatile int hotKeySamplePeriod;
 
     @SuppressWarnings("unchecked")
     public ImprovedSimpleConcurrentKVStore(int numberOfSegments) {
-        this.segments = new SimpleConcurrentKVStore[numberOfSegments];
+        this.segments = (SimpleConcurrentKVStore<K, V>[]) new SimpleConcurrentKVStore<?, ?>[numberOfSegments];
         this.numberOfSegments = numberOfSegments;
         for (int i = 0; i < numberOfSegments; i++) {
             this.segments[i] = new SimpleConcurrentKVStore<>();
         }
     }
 
+    /**
+     * Creates a store that publishes its mutations as one ordered change stream per segment, see
+     * {@link #changeLog(int)}.
+     *
+     * @param changeLogCapacityPerSegment how many of the latest mutations each segment's log keeps
+     */
+    public ImprovedSimpleConcurrentKVStore(int numberOfSegments, int changeLogCapacityPerSegment) {
+        this(numberOfSegments, changeLogCapacityPerSegment, 0);
+    }
+
+    /**
+     * @param changeLogCapacityPerSegment how many of the latest mutations each segment's log keeps, 0 for none
+     * @param missFilterEntriesPerSegment how many keys each segment's miss filter is sized for at first, 0 for none.
+     *                                    With a miss filter, most lookups of absent keys return without taking the
+     *                                    segment lock; it costs two extra probes per write.
+     */
+    @SuppressWarnings("unchecked")
+    public ImprovedSimpleConcurrentKVStore(int numberOfSegments, int changeLogCapacityPerSegment,
+                                           int missFilterEntriesPerSegment) {
+        this.segments = (SimpleConcurrentKVStore<K, V>[]) new SimpleConcurrentKVStore<?, ?>[numberOfSegments];
+        this.numberOfSegments = numberOfSegments;
+        for (int i = 0; i < numberOfSegments; i++) {
+            this.segments[i] = new SimpleConcurrentKVStore<>(changeLogCapacityPerSegment, missFilterEntriesPerSegment);
+        }
+    }
+
     public ImprovedSimpleConcurrentKVStore() {
         this(DEFAULT_SEGMENTS);
     }
@@ -28,11 +72,32 @@ public class ImprovedSimpleConcurrentKVStore<K,V> {
         return kvStoreForHash.get(key);
     }
 
+    /**
+     * Looks up the key without throwing on a miss.
+     *
+     * @return the value mapped to the key, or null if it doesn't exist
+     */
+    public V getOrNull(K key) {
+        return nullCheckAndGetStore(key).getOrNull(key);
+    }
+
+    public V getOrDefault(K key, V defaultValue) {
+        return nullCheckAndGetStore(key).getOrDefault(key, defaultValue);
+    }
+
+    public Optional<V> find(K key) {
+        return nullCheckAndGetStore(key).find(key);
+    }
+
     private SimpleConcurrentKVStore<K, V> nullCheckAndGetStore(K key) {
         if (key == null) {
             throw new IllegalArgumentException("Invalid key or value");
         }
 
+        SpaceSavingTracker<K> tracker = this.hotKeys;
+        if (tracker != null && ThreadLocalRandom.current().nextInt(this.hotKeySamplePeriod) == 0) {
+            tracker.offer(key);
+        }
         int hash = this.hash(key);
         return this.segments[hash];
     }
@@ -42,25 +107,331 @@ public class ImprovedSimpleConcurrentKVStore<K,V> {
         return kvStoreForHash.delete(key);
     }
 
-    public void put(K key, V value) {
+    /**
+     * @return the previous value mapped to the key, or null if there was none
+     */
+    public V put(K key, V value) {
         if (key == null || value == null) {
             throw new IllegalArgumentException("Invalid key or value");
         }
         SimpleConcurrentKVStore<K, V> kvStoreForHash = nullCheckAndGetStore(key);
-        kvStoreForHash.put(key, value);
+        return kvStoreForHash.put(key, value);
+    }
+
+    /**
+     * @return the current value if the key was already mapped (and is left untouched), otherwise null
+     */
+    public V putIfAbsent(K key, V value) {
+        return nullCheckAndGetStore(key).putIfAbsent(key, value);
+    }
+
+    /**
+     * Atomic within the key's segment; the function runs under the segment lock and must not access this store.
+     *
+     * @see SimpleConcurrentKVStore#computeIfAbsent(Object, Function)
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return nullCheckAndGetStore(key).computeIfAbsent(key, mappingFunction);
+    }
+
+    /**
+     * Atomic within the key's segment; the function runs under the segment lock and must not access this store.
+     *
+     * @see SimpleConcurrentKVStore#compute(Object, BiFunction)
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return nullCheckAndGetStore(key).compute(key, remappingFunction);
+    }
+
+    /**
+     * Atomic within the key's segment; the function runs under the segment lock and must not access this store.
+     *
+     * @see SimpleConcurrentKVStore#merge(Object, Object, BiFunction)
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        return nullCheckAndGetStore(key).merge(key, value, remappingFunction);
+    }
+
+    /**
+     * Removes the key only if it is currently mapped to the given value (compared by identity).
+     *
+     * @return true if the entry was removed
+     */
+    public boolean remove(K key, V value) {
+        SimpleConcurrentKVStore<K, V> kvStoreForHash = nullCheckAndGetStore(key);
+        return kvStoreForHash.remove(key, value);
+    }
+
+    /**
+     * Looks up a batch of keys, taking each segment lock once for all the keys that hash to it.
+     *
+     * @return the values in the order of the keys, null for keys that don't exist
+     */
+    public List<V> multiGet(List<K> keys) {
+        return applyBySegment(keys, null, (segment, segmentKeys, segmentValues) -> segment.multiGet(segmentKeys));
+    }
+
+    /**
+     * Puts a batch of key-value pairs, paired by position, taking each segment lock once.
+     *
+     * @return the previous values in the order of the keys, null where there was none
+     */
+    public List<V> multiPut(List<K> keys, List<V> values) {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Keys and values must have the same size");
+        }
+        for (V value : values) {
+            if (value == null) {
+                throw new IllegalArgumentException("Invalid key or value");
+            }
+        }
+        return applyBySegment(keys, values, SimpleConcurrentKVStore::multiPut);
+    }
+
+    /**
+     * Removes a batch of keys, taking each segment lock once for all the keys that hash to it.
+     *
+     * @return the removed values in the order of the keys, null for keys that didn't exist
+     */
+    public List<V> multiDelete(List<K> keys) {
+        return applyBySegment(keys, null, (segment, segmentKeys, segmentValues) -> segment.multiDelete(segmentKeys));
+    }
+
+    /**
+     * Groups the positions of the keys by segment (a counting sort, so keys keep their relative order inside a
+     * segment), runs the batch operation once per touched segment and scatters the results back to input order.
+     */
+    @SuppressWarnings("unchecked")
+    private List<V> applyBySegment(List<K> keys, List<V> values, SegmentBatch<K, V> batch) {
+        int size = keys.size();
+        int[] segmentOfKey = new int[size];
+        int[] segmentStart = new int[this.numberOfSegments + 1];
+        for (int i = 0; i < size; i++) {
+            K key = keys.get(i);
+            if (key == null) {
+                throw new IllegalArgumentException("Invalid key or value");
+            }
+            segmentOfKey[i] = this.hash(key);
+            segmentStart[segmentOfKey[i] + 1]++;
+        }
+        for (int s = 0; s < this.numberOfSegments; s++) {
+            segmentStart[s + 1] += segmentStart[s];
+        }
+        int[] positions = new int[size];
+        int[] next = Arrays.copyOf(segmentStart, this.numberOfSegments);
+        for (int i = 0; i < size; i++) {
+            positions[next[segmentOfKey[i]]++] = i;
+        }
+
+        Object[] results = new Object[size];
+        IntConsumer runSegment = s -> {
+            int from = segmentStart[s];
+            int to = segmentStart[s + 1];
+            if (from == to) {
+                return;
+            }
+            List<K> segmentKeys = new ArrayList<>(to - from);
+            List<V> segmentValues = values == null ? null : new ArrayList<>(to - from);
+            for (int j = from; j < to; j++) {
+                segmentKeys.add(keys.get(positions[j]));
+                if (segmentValues != null) {
+                    segmentValues.add(values.get(positions[j]));
+                }
+            }
+            List<V> segmentResults = batch.apply(this.segments[s], segmentKeys, segmentValues);
+            for (int j = from; j < to; j++) {
+                results[positions[j]] = segmentResults.get(j - from);
+            }
+        };
+        if (size >= PARALLEL_BATCH_THRESHOLD) {
+            IntStream.range(0, this.numberOfSegments).parallel().forEach(runSegment);
+        } else {
+            for (int s = 0; s < this.numberOfSegments; s++) {
+                runSegment.accept(s);
+            }
+        }
+        return (List<V>) Arrays.asList(results);
+    }
+
+    /**
+     * A batch operation applied to the keys (and values) that fall into one segment.
+     */
+    private interface SegmentBatch<K, V> {
+        List<V> apply(SimpleConcurrentKVStore<K, V> segment, List<K> keys, List<V> values);
     }
 
     public boolean containsKey(K key){
-        try {
-            this.get(key);
-            return true;
-        }catch (Exception e){
-            return false;
+        return key != null && nullCheckAndGetStore(key).containsKey(key);
+    }
+
+    public long size() {
+        long size = 0;
+        for (SimpleConcurrentKVStore<K, V> segment : this.segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * A spliterator over all entries that splits along segments first and then within a segment's table, so a
+     * parallel scan spreads over all cores. It is weakly consistent and never locks a segment, so writers keep going
+     * while it runs.
+     */
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return new SegmentSpliterator(0, this.numberOfSegments);
+    }
+
+    /**
+     * @return a sequential stream of all entries; call {@code parallel()} on it for a scan on all cores
+     * @see #spliterator()
+     */
+    public Stream<Map.Entry<K, V>> entries() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * A weakly consistent iterator over one segment, for jobs that want to work segment by segment.
+     */
+    public Iterator<Map.Entry<K, V>> segmentIterator(int segment) {
+        return this.segments[segment].iterator();
+    }
+
+    /**
+     * The change stream of one segment. Events of a key always appear on the segment of {@link #segmentOf(Object)}, in
+     * the order its writes happened; there is no order across segments.
+     *
+     * @throws IllegalStateException if the store was created without change capture
+     */
+    public KVChangeLog<K, V> changeLog(int segment) {
+        return this.segments[segment].changeLog();
+    }
+
+    /**
+     * Starts tracking the most accessed keys of single-key operations with a Space-Saving tracker fed by a sample of
+     * the accesses, so the cost on the access path is one random number for most calls. Replaces any previous
+     * tracking.
+     *
+     * @param topK         how many hot keys to track
+     * @param samplePeriod track one in this many accesses on average, 1 to track all of them
+     */
+    public void enableHotKeyTracking(int topK, int samplePeriod) {
+        if (samplePeriod <= 0) {
+            throw new IllegalArgumentException("Sample period must be positive");
+        }
+        this.hotKeySamplePeriod = samplePeriod;
+        this.hotKeys = new SpaceSavingTracker<>(topK);
+    }
+
+    public void disableHotKeyTracking() {
+        this.hotKeys = null;
+    }
+
+    /**
+     * Snapshots the counters of every segment and, if enabled, the hot keys with their sampled counts scaled back up
+     * to estimated accesses. Skewed segment counters or lock waits suggest too few segments or a few hot keys.
+     */
+    public KVStoreStats<K> stats() {
+        List<KVStoreStats.Segment> segmentStats = new ArrayList<>(this.numberOfSegments);
+        for (SimpleConcurrentKVStore<K, V> segment : this.segments) {
+            segmentStats.add(segment.stats());
+        }
+        SpaceSavingTracker<K> tracker = this.hotKeys;
+        return new KVStoreStats<>(segmentStats, tracker == null ? List.of() : tracker.top(this.hotKeySamplePeriod));
+    }
+
+    /**
+     * Rebuilds each segment's miss filter for its current number of keys, one segment lock at a time. Worth calling
+     * after deleting a large share of the keys.
+     */
+    public void compactMissFilters() {
+        for (SimpleConcurrentKVStore<K, V> segment : this.segments) {
+            segment.compactMissFilter();
+        }
+    }
+
+    /**
+     * @return the segment the key lives in
+     */
+    public int segmentOf(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        return hash(key);
+    }
+
+    public int numberOfSegments() {
+        return this.numberOfSegments;
+    }
+
+    /**
+     * Covers the segments {@code [index, fence)} plus the already opened part of one segment in {@code current}.
+     * Splitting hands out half of the unopened segments; once a single segment is left it is opened and split along
+     * its own table.
+     */
+    private final class SegmentSpliterator implements Spliterator<Map.Entry<K, V>> {
+        private int index;
+        private int fence;
+        private Spliterator<Map.Entry<K, V>> current;
+
+        SegmentSpliterator(int index, int fence) {
+            this.index = index;
+            this.fence = fence;
+        }
+
+        SegmentSpliterator(Spliterator<Map.Entry<K, V>> current) {
+            this.current = current;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            for (;;) {
+                if (this.current != null && this.current.tryAdvance(action)) {
+                    return true;
+                }
+                if (this.index >= this.fence) {
+                    return false;
+                }
+                this.current = segments[this.index++].spliterator();
+            }
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            int remaining = this.fence - this.index;
+            if (remaining >= 2 || (remaining == 1 && this.current != null)) {
+                int mid = (this.index + this.fence) >>> 1;
+                SegmentSpliterator suffix = new SegmentSpliterator(mid, this.fence);
+                this.fence = mid;
+                return suffix;
+            }
+            if (remaining == 1) {
+                this.current = segments[this.index++].spliterator();
+            }
+            if (this.current == null) {
+                return null;
+            }
+            Spliterator<Map.Entry<K, V>> split = this.current.trySplit();
+            return split == null ? null : new SegmentSpliterator(split);
+        }
+
+        @Override
+        public long estimateSize() {
+            long size = this.current == null ? 0 : this.current.estimateSize();
+            for (int i = this.index; i < this.fence; i++) {
+                size += segments[i].size();
+            }
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.DISTINCT | Spliterator.NONNULL;
         }
     }
 
     private int hash(K key) {
-        return Math.abs(Objects.hash(key) % this.numberOfSegments);
+        // key.hashCode() rather than Objects.hash(key), which allocates a varargs array on every call.
+        return KVHashing.segmentFor(KVHashing.mix32(key.hashCode()), this.numberOfSegments);
     }
 
     public static void main(String[] args) {
@@ -87,10 +458,80 @@ public class ImprovedSimpleConcurrentKVStore<K,V> {
         }
 
         // Checking the final state of the store
+        System.out.println("Final value for key 1 (should be null if delete worked): " + improvedKVStore.getOrNull(1));
+
+        // Atomic read-modify-write under a single segment lock
+        improvedKVStore.merge(7, "Fig", (current, value) -> current + "+" + value);
+        System.out.println("Merged 7: " + improvedKVStore.merge(7, "Fig", (current, value) -> current + "+" + value));
+
+        // Bulk operations take each segment lock once per batch and keep the input order
+        improvedKVStore.multiPut(List.of(2, 3, 4), List.of("Banana", "Cherry", "Date"));
+        System.out.println("Multi get 4, 5, 2: " + improvedKVStore.multiGet(List.of(4, 5, 2)));
+        System.out.println("Multi delete 2, 3: " + improvedKVStore.multiDelete(List.of(2, 3)));
+
+        // Weakly consistent parallel scan, split by segment and then within each segment's table
+        for (int i = 0; i < 100_000; i++) {
+            improvedKVStore.put(1_000 + i, "Value" + i);
+        }
+        System.out.println("Parallel scan counted: " + improvedKVStore.entries().parallel().count()
+                + " of " + improvedKVStore.size());
+
+        // Change capture: each segment publishes its mutations in order, and a subscriber resumes where it left off
+        ImprovedSimpleConcurrentKVStore<String, Integer> captured = new ImprovedSimpleConcurrentKVStore<>(4, 1_024);
+        int segment = captured.segmentOf("stock");
+        KVChangeLog<String, Integer>.Subscription subscription = captured.changeLog(segment).subscribe(1);
+        captured.put("stock", 10);
+        captured.merge("stock", -3, Integer::sum);
+        System.out.println("Changes: " + subscription.poll(100));
+        captured.delete("stock");
+        KVChangeLog<String, Integer>.Subscription resumed =
+                captured.changeLog(segment).subscribe(subscription.nextSequence());
+        System.out.println("Resumed changes: " + resumed.poll(100));
+
+        // Miss filter: lookups of absent keys mostly skip the segment lock and the table probe
+        ImprovedSimpleConcurrentKVStore<Integer, String> filtered = new ImprovedSimpleConcurrentKVStore<>(16, 0, 1_024);
+        for (int i = 0; i < 100_000; i++) {
+            filtered.put(i, "Value" + i);
+        }
+        long start = System.nanoTime();
+        int misses = 0;
+        for (int i = 100_000; i < 1_100_000; i++) {
+            if (filtered.getOrNull(i) == null) {
+                misses++;
+            }
+        }
+        System.out.println(misses + " filtered misses in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        // Stats: per-segment counters and the hottest keys of a skewed workload
+        ImprovedSimpleConcurrentKVStore<Integer, Integer> skewed = new ImprovedSimpleConcurrentKVStore<>(8);
+        // Every key with more than 1/32 of the sampled accesses is guaranteed to be tracked
+        skewed.enableHotKeyTracking(32, 16);
+        ExecutorService workers = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            workers.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 200_000; i++) {
+                    // Keys 0-2 get half of the traffic
+                    int key = random.nextBoolean() ? random.nextInt(3) : random.nextInt(10_000);
+                    if (skewed.getOrNull(key) == null) {
+                        skewed.put(key, i);
+                    }
+                }
+            });
+        }
+        workers.shutdown();
         try {
-            System.out.println("Final value for key 1 (should be null if delete worked): " + improvedKVStore.get(1));
-        } catch (IllegalArgumentException e) {
-            System.out.println(e.getMessage());
+            if (!workers.awaitTermination(30, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
         }
+        KVStoreStats<Integer> stats = skewed.stats();
+        System.out.println("Gets: " + stats.gets() + ", lock waits: " + stats.lockWaits()
+                + ", hottest keys: " + stats.hotKeys().subList(0, 4));
+        System.out.println("Hit rate: " + stats.hitRate() + ", hottest segment: " + stats.segments().get(
+                skewed.segmentOf(stats.hotKeys().get(0).key())));
     }
 }
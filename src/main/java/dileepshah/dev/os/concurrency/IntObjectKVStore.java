@@ -0,0 +1,249 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Segmented concurrent KV store specialised for {@code int} keys. It has the same shape as
+ * {@link ImprovedSimpleConcurrentKVStore}, but keys are held in primitive open-addressing arrays so lookups never box
+ * the key. Values can't be null, which lets a null value slot mark an empty slot.
+ *
+ * @param <V> the type of the values
+ */
+public class IntObjectKVStore<V> {
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int DEFAULT_SEGMENT_CAPACITY = 16;
+    private final Segment<V>[] segments;
+    private final int numberOfSegments;
+
+    @SuppressWarnings("unchecked")
+    public IntObjectKVStore(int numberOfSegments) {
+        if (numberOfSegments <= 0) {
+            throw new IllegalArgumentException("Number of segments must be positive");
+        }
+        this.segments = (Segment<V>[]) new Segment<?>[numberOfSegments];
+        this.numberOfSegments = numberOfSegments;
+        for (int i = 0; i < numberOfSegments; i++) {
+            this.segments[i] = new Segment<>(DEFAULT_SEGMENT_CAPACITY);
+        }
+    }
+
+    public IntObjectKVStore() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the value mapped to the key
+     * @throws IllegalArgumentException if the key doesn't exist; use {@link #getOrNull(int)} on paths where misses are
+     *                                  common, since the exception allocates
+     */
+    public V get(int key) {
+        int hash = KVHashing.mix32(key);
+        Segment<V> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key, hash);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+            }
+            return segment.valueAt(slot);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Looks up the key without throwing or allocating on a miss.
+     *
+     * @return the value mapped to the key, or null if it doesn't exist
+     */
+    public V getOrNull(int key) {
+        int hash = KVHashing.mix32(key);
+        Segment<V> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key, hash);
+            return slot < 0 ? null : segment.valueAt(slot);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void put(int key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid value");
+        }
+        int hash = KVHashing.mix32(key);
+        Segment<V> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            segment.insert(key, hash, value);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * @param key the key to remove
+     * @return the value that was mapped to the key
+     * @throws IllegalArgumentException if the key doesn't exist
+     */
+    public V delete(int key) {
+        int hash = KVHashing.mix32(key);
+        Segment<V> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key, hash);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Invalid key or it doesn't exist");
+            }
+            V value = segment.valueAt(slot);
+            segment.removeAt(slot);
+            return value;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public boolean containsKey(int key) {
+        int hash = KVHashing.mix32(key);
+        Segment<V> segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            return segment.find(key, hash) >= 0;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<V> segment : this.segments) {
+            segment.lock.lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private Segment<V> segmentFor(int hash) {
+        return this.segments[KVHashing.segmentFor(hash, this.numberOfSegments)];
+    }
+
+    /**
+     * One lock-protected open-addressing table. Only accessed while holding {@link #lock}.
+     */
+    private static final class Segment<V> {
+        private final Lock lock = new ReentrantLock();
+        private int[] keys;
+        private Object[] values;
+        private int size;
+
+        Segment(int capacity) {
+            int tableSize = KVHashing.tableSizeFor(capacity);
+            this.keys = new int[tableSize];
+            this.values = new Object[tableSize];
+        }
+
+        @SuppressWarnings("unchecked")
+        V valueAt(int slot) {
+            return (V) this.values[slot];
+        }
+
+        int find(int key, int hash) {
+            int mask = this.keys.length - 1;
+            int slot = hash & mask;
+            while (this.values[slot] != null) {
+                if (this.keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(int key, int hash, V value) {
+            int mask = this.keys.length - 1;
+            int slot = hash & mask;
+            while (this.values[slot] != null) {
+                if (this.keys[slot] == key) {
+                    this.values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            this.keys[slot] = key;
+            this.values[slot] = value;
+            if (++this.size > (this.keys.length >>> 2) * 3) {
+                resize();
+            }
+        }
+
+        void removeAt(int slot) {
+            int mask = this.keys.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            // Backward shift: pull later entries of the same probe run into the hole so no tombstones are needed.
+            while (this.values[next] != null) {
+                int home = KVHashing.mix32(this.keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    this.keys[hole] = this.keys[next];
+                    this.values[hole] = this.values[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            this.values[hole] = null;
+            this.size--;
+        }
+
+        private void resize() {
+            int[] oldKeys = this.keys;
+            Object[] oldValues = this.values;
+            int tableSize = oldKeys.length << 1;
+            this.keys = new int[tableSize];
+            this.values = new Object[tableSize];
+            int mask = tableSize - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    int slot = KVHashing.mix32(oldKeys[i]) & mask;
+                    while (this.values[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.keys[slot] = oldKeys[i];
+                    this.values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        IntObjectKVStore<String> store = new IntObjectKVStore<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        executor.execute(() -> store.put(1, "Apple"));
+        executor.execute(() -> System.out.println("Contains 1: " + store.containsKey(1)));
+        executor.execute(() -> store.put(1, "Avocado"));
+        executor.execute(() -> System.out.println("Contains 1: " + store.containsKey(1)));
+        executor.execute(() -> store.put(2, "Banana"));
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(800, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+
+        System.out.println("Value for key 1: " + store.get(1) + ", size: " + store.size());
+        System.out.println("Deleted key 2: " + store.delete(2) + ", now reads as: " + store.getOrNull(2));
+    }
+}
@@ -0,0 +1,168 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, ordered log of the mutations of one {@link SimpleConcurrentKVStore}, used as the change stream of a store
+ * segment.
+ * <p>
+ * The store appends under its own lock, so events get gap-free sequence numbers in the order the writes happened and
+ * appending is one small allocation and two stores into a ring. The ring keeps the latest {@code capacity} events and
+ * overwrites the oldest; writers never wait for subscribers. Each {@link Subscription} reads the ring without locking
+ * at its own pace, from any sequence still held, and finds out if it falls so far behind that events it hasn't read
+ * were overwritten.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class KVChangeLog<K, V> {
+    private final AtomicReferenceArray<Event<K, V>> ring;
+    private final int mask;
+    // Only written by appenders, who hold the store lock
+    private long lastSequence;
+    private volatile long published;
+
+    public enum Type {
+        PUT,
+        DELETE,
+        /**
+         * Result of {@code computeIfAbsent}, {@code compute} or {@code merge}; a null value means the key was removed.
+         */
+        COMPUTE
+    }
+
+    /**
+     * One mutation, with the value the key was left with.
+     */
+    public static final class Event<K, V> {
+        private final long sequence;
+        private final Type type;
+        private final K key;
+        private final V value;
+
+        Event(long sequence, Type type, K key, V value) {
+            this.sequence = sequence;
+            this.type = type;
+            this.key = key;
+            this.value = value;
+        }
+
+        public long sequence() {
+            return this.sequence;
+        }
+
+        public Type type() {
+            return this.type;
+        }
+
+        public K key() {
+            return this.key;
+        }
+
+        /**
+         * @return the new value, null for a delete
+         */
+        public V value() {
+            return this.value;
+        }
+
+        @Override
+        public String toString() {
+            return "#" + this.sequence + " " + this.type + " " + this.key + "=" + this.value;
+        }
+    }
+
+    KVChangeLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.ring = new AtomicReferenceArray<>(KVHashing.tableSizeFor(capacity));
+        this.mask = this.ring.length() - 1;
+    }
+
+    /**
+     * Must be called under the lock of the store being logged.
+     */
+    void append(Type type, K key, V value) {
+        long sequence = ++this.lastSequence;
+        this.ring.lazySet((int) sequence & this.mask, new Event<>(sequence, type, key, value));
+        // The volatile write publishes the event to subscribers that read this sequence
+        this.published = sequence;
+    }
+
+    /**
+     * @return the sequence of the latest event, 0 if there has been none
+     */
+    public long lastSequence() {
+        return this.published;
+    }
+
+    /**
+     * @return the oldest sequence a subscription can still start from
+     */
+    public long oldestSequence() {
+        return Math.max(1, this.published - this.ring.length() + 1);
+    }
+
+    /**
+     * Starts reading at the given sequence: 1 for everything still held, {@code lastSequence() + 1} for new events
+     * only, or one past the last event processed to resume.
+     *
+     * @throws IllegalArgumentException if events from that sequence on have already been overwritten
+     */
+    public Subscription subscribe(long fromSequence) {
+        if (fromSequence < 1) {
+            throw new IllegalArgumentException("Sequences start at 1");
+        }
+        if (fromSequence < oldestSequence() && this.published > 0) {
+            throw new IllegalArgumentException("Sequence " + fromSequence + " was overwritten, oldest available is "
+                    + oldestSequence());
+        }
+        return new Subscription(fromSequence);
+    }
+
+    /**
+     * A cursor over the log. Not thread safe; each consumer uses its own.
+     */
+    public final class Subscription {
+        private long nextSequence;
+
+        private Subscription(long nextSequence) {
+            this.nextSequence = nextSequence;
+        }
+
+        /**
+         * Takes up to {@code maxEvents} of the events published since the last poll, without waiting.
+         *
+         * @return the events in sequence order, empty if there are no new ones
+         * @throws IllegalStateException if the subscriber fell behind and events it hasn't read were overwritten;
+         *                               resubscribe from {@link #oldestSequence()} after resynchronising
+         */
+        public List<Event<K, V>> poll(int maxEvents) {
+            long last = Math.min(published, this.nextSequence + maxEvents - 1);
+            if (last < this.nextSequence) {
+                return List.of();
+            }
+            List<Event<K, V>> events = new ArrayList<>((int) (last - this.nextSequence + 1));
+            for (long sequence = this.nextSequence; sequence <= last; sequence++) {
+                Event<K, V> event = ring.get((int) sequence & mask);
+                if (event == null || event.sequence != sequence) {
+                    throw new IllegalStateException("Subscriber fell behind: sequence " + sequence
+                            + " was overwritten, oldest available is " + oldestSequence());
+                }
+                events.add(event);
+            }
+            this.nextSequence = last + 1;
+            return events;
+        }
+
+        /**
+         * @return the sequence the next poll starts at, which is where to resume after a restart
+         */
+        public long nextSequence() {
+            return this.nextSequence;
+        }
+    }
+}
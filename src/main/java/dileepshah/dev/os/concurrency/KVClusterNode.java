@@ -0,0 +1,346 @@
+package dileepshah.dev.os.concurrency;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One storage node of a {@link PartitionedKVCluster}: an {@link ImprovedSimpleConcurrentKVStore} of raw bytes served
+ * over the {@link KVWireProtocol} on a non-blocking socket.
+ * <p>
+ * A single selector thread accepts connections and serves them all. Each read drains every complete frame in the
+ * buffer and answers them into one output buffer flushed with a single write, so a client that pipelines a batch of
+ * requests pays for one round trip instead of one per request. Output that doesn't fit in the socket buffer is kept
+ * and flushed when the channel becomes writable, and the connection isn't read from again until it has been.
+ */
+public final class KVClusterNode implements AutoCloseable {
+    private final ImprovedSimpleConcurrentKVStore<ByteBuffer, byte[]> store;
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread eventLoop;
+    private volatile boolean running;
+
+    /**
+     * Starts a node listening on the address; port 0 picks a free port, see {@link #address()}.
+     */
+    @SuppressWarnings("this-escape")
+    public KVClusterNode(InetSocketAddress bindAddress, int numberOfSegments) throws IOException {
+        this.store = new ImprovedSimpleConcurrentKVStore<>(numberOfSegments);
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        this.server.bind(bindAddress);
+        this.server.configureBlocking(false);
+        this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.running = true;
+        this.eventLoop = new Thread(this::run, "kv-node-" + address().getPort());
+        this.eventLoop.start();
+    }
+
+    public KVClusterNode(InetSocketAddress bindAddress) throws IOException {
+        this(bindAddress, 16);
+    }
+
+    public InetSocketAddress address() {
+        try {
+            return (InetSocketAddress) this.server.getLocalAddress();
+        } catch (IOException e) {
+            throw new IllegalStateException("Node is closed", e);
+        }
+    }
+
+    public long size() {
+        return this.store.size();
+    }
+
+    private void run() {
+        while (this.running) {
+            try {
+                this.selector.select();
+                Iterator<SelectionKey> selected = this.selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            if (key.isWritable()) {
+                                flush(key);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(key);
+                            }
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        // A broken or misbehaving client only loses its own connection
+                        closeConnection(key);
+                    }
+                }
+            } catch (IOException e) {
+                if (this.running) {
+                    System.err.println("Node event loop select failed: " + e);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = this.server.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(this.selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        if (channel.read(connection.in) < 0) {
+            closeConnection(key);
+            return;
+        }
+        ByteBuffer in = connection.in;
+        in.flip();
+        while (in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length <= 0 || length > KVWireProtocol.MAX_REQUEST) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            in.position(in.position() + 4);
+            ByteBuffer frame = in.slice();
+            frame.limit(length);
+            in.position(in.position() + length);
+            handle(frame, connection);
+        }
+        in.compact();
+        if (!in.hasRemaining()) {
+            connection.in = grow(in, in.capacity() * 2);
+        }
+        flush(key);
+    }
+
+    private void handle(ByteBuffer frame, Connection connection) {
+        byte op = frame.get();
+        switch (op) {
+            case KVWireProtocol.GET: {
+                byte[] value = this.store.getOrNull(key(frame));
+                if (value == null) {
+                    respond(connection, KVWireProtocol.MISSING, null);
+                } else {
+                    respond(connection, KVWireProtocol.FOUND, value);
+                }
+                break;
+            }
+            case KVWireProtocol.PUT: {
+                ByteBuffer key = key(frame);
+                this.store.put(key, KVWireProtocol.readBytes(frame));
+                respond(connection, KVWireProtocol.OK, null);
+                break;
+            }
+            case KVWireProtocol.DELETE: {
+                ByteBuffer key = key(frame);
+                byte[][] removed = new byte[1][];
+                this.store.compute(key, (k, current) -> {
+                    removed[0] = current;
+                    return null;
+                });
+                if (removed[0] == null) {
+                    respond(connection, KVWireProtocol.MISSING, null);
+                } else {
+                    respond(connection, KVWireProtocol.FOUND, removed[0]);
+                }
+                break;
+            }
+            case KVWireProtocol.PUT_IF_ABSENT: {
+                ByteBuffer key = key(frame);
+                byte[] previous = this.store.putIfAbsent(key, KVWireProtocol.readBytes(frame));
+                respond(connection, previous == null ? KVWireProtocol.OK : KVWireProtocol.EXISTS, null);
+                break;
+            }
+            case KVWireProtocol.REMOVE_IF_EQUALS: {
+                ByteBuffer key = key(frame);
+                byte[] expected = KVWireProtocol.readBytes(frame);
+                boolean[] removed = new boolean[1];
+                this.store.compute(key, (k, current) -> {
+                    removed[0] = Arrays.equals(current, expected);
+                    return removed[0] ? null : current;
+                });
+                respond(connection, removed[0] ? KVWireProtocol.OK : KVWireProtocol.MISSING, null);
+                break;
+            }
+            case KVWireProtocol.REPLACE_IF_EQUALS: {
+                ByteBuffer key = key(frame);
+                byte[] expected = KVWireProtocol.readBytes(frame);
+                byte[] value = KVWireProtocol.readBytes(frame);
+                boolean[] replaced = new boolean[1];
+                this.store.compute(key, (k, current) -> {
+                    replaced[0] = Arrays.equals(current, expected);
+                    return replaced[0] ? value : current;
+                });
+                respond(connection, replaced[0] ? KVWireProtocol.OK : KVWireProtocol.MISSING, null);
+                break;
+            }
+            case KVWireProtocol.SCAN:
+                scan(frame.getInt(), frame.getLong(), connection);
+                break;
+            case KVWireProtocol.SIZE: {
+                reserve(connection, 4 + 1 + 8);
+                connection.out.putInt(1 + 8).put(KVWireProtocol.OK).putLong(this.store.size());
+                break;
+            }
+            default:
+                respond(connection, KVWireProtocol.ERROR, null);
+        }
+    }
+
+    /**
+     * Answers with one page of a store segment: the entries whose key hash is at or after {@code from}, in hash order,
+     * until the page holds about {@link KVWireProtocol#SCAN_PAGE} bytes. A page ends between two hashes, so keys that
+     * share a hash are never split across pages.
+     */
+    private void scan(int segment, long from, Connection connection) {
+        List<HashedEntry> entries = new ArrayList<>();
+        if (segment >= 0 && segment < this.store.numberOfSegments()) {
+            this.store.segmentIterator(segment).forEachRemaining(entry -> {
+                long hash = KVHashing.hash64(entry.getKey().array());
+                if (Long.compareUnsigned(hash, from) >= 0) {
+                    entries.add(new HashedEntry(hash, entry));
+                }
+            });
+        }
+        entries.sort((a, b) -> Long.compareUnsigned(a.hash, b.hash));
+        int length = 1 + 4 + 1 + 8 + 4;
+        int count = 0;
+        while (count < entries.size()) {
+            long hash = entries.get(count).hash;
+            int end = count;
+            int groupLength = 0;
+            while (end < entries.size() && entries.get(end).hash == hash) {
+                groupLength += entries.get(end).length();
+                end++;
+            }
+            if (count > 0 && length + groupLength > KVWireProtocol.SCAN_PAGE) {
+                break;
+            }
+            length += groupLength;
+            count = end;
+        }
+        boolean more = count < entries.size();
+        reserve(connection, 4 + length);
+        ByteBuffer out = connection.out;
+        out.putInt(length).put(KVWireProtocol.OK).putInt(this.store.numberOfSegments()).put((byte) (more ? 1 : 0))
+                .putLong(more ? entries.get(count).hash : 0).putInt(count);
+        for (int i = 0; i < count; i++) {
+            Map.Entry<ByteBuffer, byte[]> entry = entries.get(i).entry;
+            out.putInt(entry.getKey().remaining()).put(entry.getKey().duplicate());
+            out.putInt(entry.getValue().length).put(entry.getValue());
+        }
+    }
+
+    private static ByteBuffer key(ByteBuffer frame) {
+        // Wrapped bytes compare and hash by content, so they work as keys without a wrapper class
+        return ByteBuffer.wrap(KVWireProtocol.readBytes(frame));
+    }
+
+    private static void respond(Connection connection, byte status, byte[] value) {
+        if (value == null) {
+            reserve(connection, 4 + 1);
+            connection.out.putInt(1).put(status);
+        } else {
+            reserve(connection, 4 + 1 + 4 + value.length);
+            connection.out.putInt(1 + 4 + value.length).put(status).putInt(value.length).put(value);
+        }
+    }
+
+    private static void reserve(Connection connection, int bytes) {
+        if (connection.out.remaining() < bytes) {
+            connection.out = grow(connection.out, connection.out.position() + bytes);
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minimumCapacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(minimumCapacity, buffer.capacity() * 2));
+        buffer.flip();
+        return larger.put(buffer);
+    }
+
+    private void flush(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer out = connection.out;
+        out.flip();
+        channel.write(out);
+        boolean pending = out.hasRemaining();
+        out.compact();
+        // Stop reading while responses are backed up, so a client that never reads can't grow the buffer forever
+        key.interestOps(pending ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private static void closeConnection(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // Already closing
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.running = false;
+        this.selector.wakeup();
+        try {
+            this.eventLoop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : this.selector.keys()) {
+            key.channel().close();
+        }
+        this.selector.close();
+    }
+
+    private static final class HashedEntry {
+        private final long hash;
+        private final Map.Entry<ByteBuffer, byte[]> entry;
+
+        HashedEntry(long hash, Map.Entry<ByteBuffer, byte[]> entry) {
+            this.hash = hash;
+            this.entry = entry;
+        }
+
+        int length() {
+            return 4 + this.entry.getKey().remaining() + 4 + this.entry.getValue().length;
+        }
+    }
+
+    private static final class Connection {
+        private ByteBuffer in = ByteBuffer.allocate(16 * 1024);
+        private ByteBuffer out = ByteBuffer.allocate(16 * 1024);
+    }
+
+    /**
+     * Runs a standalone node, so a cluster can span several processes: {@code KVClusterNode [port]}.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        KVClusterNode node = new KVClusterNode(new InetSocketAddress("127.0.0.1", port));
+        System.out.println("KV node listening on " + node.address());
+        node.eventLoop.join();
+    }
+}
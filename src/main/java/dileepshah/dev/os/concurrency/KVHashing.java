@@ -0,0 +1,80 @@
+package dileepshah.dev.os.concurrency;
+
+/**
+ * Hash spreading helpers shared by the segmented KV stores. The segment is picked from the high bits of the mixed
+ * hash and the slot inside a segment table from the low bits, so the two never correlate.
+ */
+final class KVHashing {
+
+    private KVHashing() {
+    }
+
+    /**
+     * Finalisation step of MurmurHash3 for 64 bit values. Every input bit affects every output bit.
+     *
+     * @param key the key to mix
+     * @return the mixed hash
+     */
+    static long mix64(long key) {
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Finalisation step of MurmurHash3 for 32 bit values.
+     *
+     * @param key the key to mix
+     * @return the mixed hash
+     */
+    static int mix32(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * 64 bit FNV-1a over the bytes, finished with {@link #mix64(long)}. Used where keys only exist in serialised form.
+     *
+     * @param bytes the bytes to hash
+     * @return the mixed hash
+     */
+    static long hash64(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        return mix64(h);
+    }
+
+    /**
+     * Maps a mixed hash onto {@code [0, numberOfSegments)} using its high bits, without a division.
+     *
+     * @param mixedHash        the already mixed hash
+     * @param numberOfSegments the number of segments
+     * @return the segment index
+     */
+    static int segmentFor(int mixedHash, int numberOfSegments) {
+        return (int) (((mixedHash >>> 1) * (long) numberOfSegments) >>> 31);
+    }
+
+    /**
+     * Rounds the requested capacity up to a power of two so slots can be picked with a mask.
+     *
+     * @param capacity the requested capacity
+     * @return the table size to allocate
+     */
+    static int tableSizeFor(int capacity) {
+        int n = Math.max(2, capacity);
+        return n >= (1 << 30) ? (1 << 30) : Integer.highestOneBit(n - 1) << 1;
+    }
+}
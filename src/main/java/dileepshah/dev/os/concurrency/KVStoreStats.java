@@ -0,0 +1,160 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.List;
+
+/**
+ * Point-in-time statistics of an {@link ImprovedSimpleConcurrentKVStore}: counters per segment and, if hot-key
+ * tracking is enabled, the most frequently accessed keys.
+ * <p>
+ * Counters are read one at a time while writers keep going, so totals are approximate under load but never go
+ * backwards between snapshots.
+ *
+ * @param <K> the type of the keys
+ */
+public final class KVStoreStats<K> {
+    private final List<Segment> segments;
+    private final List<HotKey<K>> hotKeys;
+
+    KVStoreStats(List<Segment> segments, List<HotKey<K>> hotKeys) {
+        this.segments = List.copyOf(segments);
+        this.hotKeys = List.copyOf(hotKeys);
+    }
+
+    /**
+     * @return the counters of each segment, by segment index
+     */
+    public List<Segment> segments() {
+        return this.segments;
+    }
+
+    /**
+     * @return the hottest keys, most frequent first; empty unless hot-key tracking is enabled
+     */
+    public List<HotKey<K>> hotKeys() {
+        return this.hotKeys;
+    }
+
+    public long gets() {
+        return this.segments.stream().mapToLong(Segment::gets).sum();
+    }
+
+    public long puts() {
+        return this.segments.stream().mapToLong(Segment::puts).sum();
+    }
+
+    public long hits() {
+        return this.segments.stream().mapToLong(Segment::hits).sum();
+    }
+
+    public long misses() {
+        return this.segments.stream().mapToLong(Segment::misses).sum();
+    }
+
+    public long lockWaits() {
+        return this.segments.stream().mapToLong(Segment::lockWaits).sum();
+    }
+
+    /**
+     * @return hits over lookups, 0 before the first lookup
+     */
+    public double hitRate() {
+        long lookups = hits() + misses();
+        return lookups == 0 ? 0 : (double) hits() / lookups;
+    }
+
+    @Override
+    public String toString() {
+        return "gets=" + gets() + ", puts=" + puts() + ", hits=" + hits() + ", misses=" + misses()
+                + ", lockWaits=" + lockWaits() + ", hotKeys=" + this.hotKeys;
+    }
+
+    /**
+     * Counters of one segment since the store was created.
+     */
+    public static final class Segment {
+        private final long gets;
+        private final long puts;
+        private final long hits;
+        private final long misses;
+        private final long lockWaits;
+        private final int size;
+
+        Segment(long gets, long puts, long hits, long misses, long lockWaits, int size) {
+            this.gets = gets;
+            this.puts = puts;
+            this.hits = hits;
+            this.misses = misses;
+            this.lockWaits = lockWaits;
+            this.size = size;
+        }
+
+        public long gets() {
+            return this.gets;
+        }
+
+        /**
+         * @return the writes that may insert or replace a value, including computes and merges
+         */
+        public long puts() {
+            return this.puts;
+        }
+
+        public long hits() {
+            return this.hits;
+        }
+
+        public long misses() {
+            return this.misses;
+        }
+
+        /**
+         * @return how many lock acquisitions found the segment lock held and had to wait
+         */
+        public long lockWaits() {
+            return this.lockWaits;
+        }
+
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public String toString() {
+            return "gets=" + this.gets + ", puts=" + this.puts + ", hits=" + this.hits + ", misses=" + this.misses
+                    + ", lockWaits=" + this.lockWaits + ", size=" + this.size;
+        }
+    }
+
+    /**
+     * A frequently accessed key with its estimated number of accesses. The true count is between
+     * {@code estimatedCount - error} and {@code estimatedCount}, give or take sampling noise.
+     */
+    public static final class HotKey<K> {
+        private final K key;
+        private final long estimatedCount;
+        private final long error;
+
+        HotKey(K key, long estimatedCount, long error) {
+            this.key = key;
+            this.estimatedCount = estimatedCount;
+            this.error = error;
+        }
+
+        public K key() {
+            return this.key;
+        }
+
+        public long estimatedCount() {
+            return this.estimatedCount;
+        }
+
+        public long error() {
+            return this.error;
+        }
+
+        @Override
+        public String toString() {
+            return this.key + "~" + this.estimatedCount;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package dileepshah.dev.os.concurrency;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary framing shared by {@link KVClusterNode} and {@link PartitionedKVCluster}.
+ * <p>
+ * Every frame is {@code [int length][byte code][body]}, where the length counts the code and the body. Requests carry
+ * an op code, responses a status code. Keys and values are length-prefixed byte strings. Responses come back in the
+ * order the requests were sent on a connection, so clients can pipeline without request ids.
+ * <p>
+ * A SCAN answers with one page of a store segment: the entries whose key hash, as an unsigned 64 bit number, is at or
+ * after {@code from}, in hash order and up to about {@link #SCAN_PAGE} bytes, each as {@code [klen][key][vlen][value]}.
+ * While {@code more} is 1, the next page starts at the hash {@code next}. Hash order doesn't change when keys come and
+ * go, so a key that stays in the segment is returned exactly once however the scan interleaves with writes.
+ * <pre>
+ * GET,               DELETE                  [op][klen][key]      -&gt; [FOUND][vlen][value] | [MISSING]
+ * PUT                [op][klen][key][vlen][value]                 -&gt; [OK]
+ * PUT_IF_ABSENT      [op][klen][key][vlen][value]                 -&gt; [OK] | [EXISTS]
+ * REMOVE_IF_EQUALS   [op][klen][key][vlen][value]                 -&gt; [OK] | [MISSING]
+ * REPLACE_IF_EQUALS  [op][klen][key][elen][expected][vlen][value] -&gt; [OK] | [MISSING]
+ * SCAN               [op][segment][from]                          -&gt; [OK][segments][more][next][count][entry]*
+ * SIZE               [op]                                         -&gt; [OK][size as long]
+ * </pre>
+ */
+final class KVWireProtocol {
+    static final byte GET = 1;
+    static final byte PUT = 2;
+    static final byte DELETE = 3;
+    static final byte PUT_IF_ABSENT = 4;
+    static final byte REMOVE_IF_EQUALS = 5;
+    static final byte SCAN = 6;
+    static final byte SIZE = 7;
+    static final byte REPLACE_IF_EQUALS = 8;
+
+    static final byte OK = 0;
+    static final byte FOUND = 1;
+    static final byte MISSING = 2;
+    static final byte EXISTS = 3;
+    static final byte ERROR = 4;
+
+    static final int MAX_FRAME = 64 << 20;
+    // Requests leave room for the header of a scan page, so a page holding any one entry still fits in a frame
+    static final int MAX_REQUEST = MAX_FRAME - 32;
+    static final int SCAN_PAGE = MAX_FRAME / 2;
+
+    private KVWireProtocol() {
+    }
+
+    static byte[] keyRequest(byte op, byte[] key) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 4 + key.length);
+        frame.putInt(frame.capacity() - 4).put(op).putInt(key.length).put(key);
+        return frame.array();
+    }
+
+    static byte[] keyValueRequest(byte op, byte[] key, byte[] value) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 4 + key.length + 4 + value.length);
+        frame.putInt(frame.capacity() - 4).put(op).putInt(key.length).put(key).putInt(value.length).put(value);
+        return frame.array();
+    }
+
+    static byte[] keyValuesRequest(byte op, byte[] key, byte[] expected, byte[] value) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 4 + key.length + 4 + expected.length + 4 + value.length);
+        frame.putInt(frame.capacity() - 4).put(op).putInt(key.length).put(key).putInt(expected.length).put(expected)
+                .putInt(value.length).put(value);
+        return frame.array();
+    }
+
+    static byte[] scanRequest(int segment, long from) {
+        return ByteBuffer.allocate(4 + 1 + 4 + 8).putInt(1 + 4 + 8).put(SCAN).putInt(segment).putLong(from).array();
+    }
+
+    static byte[] sizeRequest() {
+        return ByteBuffer.allocate(4 + 1).putInt(1).put(SIZE).array();
+    }
+
+    static byte[] readBytes(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Malformed frame");
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * A decoded response: its status and whatever followed it.
+     */
+    static final class Response {
+        final byte status;
+        final ByteBuffer body;
+
+        Response(byte status, ByteBuffer body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read-through cache on top of {@link ImprovedSimpleConcurrentKVStore} that fills misses from a {@link Loader}.
+ * <p>
+ * Loads are single flight: the first caller to miss installs a pending entry under the segment lock and runs the
+ * loader, and every concurrent caller for that key waits on the same future, so a hot key that misses costs the
+ * backend one load however many threads want it. A failed load is handed to all its waiters and then dropped, so the
+ * next call tries again.
+ * <p>
+ * Entries live for {@code ttl}. Once an entry is older than {@code refreshAfter} the next read still returns it
+ * straight away but also starts one background reload, so a key that keeps being read is renewed before it expires and
+ * its readers never wait. A failed refresh keeps the old value until it expires. Keys the loader reports as absent are
+ * cached too, for the shorter {@code negativeTtl}, so repeated lookups of missing keys don't reach the backend either.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class LoadingKVCache<K, V> {
+    private final ImprovedSimpleConcurrentKVStore<K, Entry<V>> store;
+    private final Loader<K, V> loader;
+    private final long ttlNanos;
+    private final long refreshAfterNanos;
+    private final long negativeTtlNanos;
+    private final Executor refreshExecutor;
+
+    /**
+     * Loads the value of a key from the backing source.
+     */
+    @FunctionalInterface
+    public interface Loader<K, V> {
+        /**
+         * @return the value, or null if the source has no value for the key
+         */
+        V load(K key) throws Exception;
+    }
+
+    /**
+     * @param loader          fills misses and refreshes
+     * @param ttl             how long a loaded value is served
+     * @param refreshAfter    age after which a read triggers a background reload, at least {@code ttl} to disable
+     * @param negativeTtl     how long a key the loader found absent is remembered, 0 to not cache absent keys
+     * @param unit            the unit of the durations
+     * @param refreshExecutor runs the background reloads
+     */
+    public LoadingKVCache(Loader<K, V> loader, long ttl, long refreshAfter, long negativeTtl, TimeUnit unit,
+                          Executor refreshExecutor) {
+        if (loader == null || refreshExecutor == null) {
+            throw new IllegalArgumentException("Invalid loader or executor");
+        }
+        if (ttl <= 0 || refreshAfter <= 0 || negativeTtl < 0) {
+            throw new IllegalArgumentException("Invalid durations");
+        }
+        this.store = new ImprovedSimpleConcurrentKVStore<>();
+        this.loader = loader;
+        this.ttlNanos = unit.toNanos(ttl);
+        this.refreshAfterNanos = unit.toNanos(refreshAfter);
+        this.negativeTtlNanos = unit.toNanos(negativeTtl);
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    public LoadingKVCache(Loader<K, V> loader, long ttl, long refreshAfter, long negativeTtl, TimeUnit unit) {
+        this(loader, ttl, refreshAfter, negativeTtl, unit, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @return the cached or freshly loaded value
+     * @throws IllegalArgumentException if the loader has no value for the key
+     * @throws IllegalStateException    if the load failed
+     */
+    public V get(K key) {
+        V value = getOrNull(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+        }
+        return value;
+    }
+
+    /**
+     * @return the cached or freshly loaded value, or null if the loader has no value for the key
+     * @throws IllegalStateException if the load failed
+     */
+    public V getOrNull(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        long now = System.nanoTime();
+        Entry<V> entry = this.store.getOrNull(key);
+        if (entry == null || entry.isExpired(now)) {
+            entry = loadOnce(key, entry);
+        } else if (entry.needsRefresh(now, this.refreshAfterNanos)) {
+            refresh(key, entry);
+        }
+        try {
+            return entry.future.join();
+        } catch (CompletionException e) {
+            throw new IllegalStateException("Loading " + key + " failed", e.getCause());
+        }
+    }
+
+    /**
+     * Caches a value directly, replacing whatever is cached or being loaded for the key.
+     */
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        Entry<V> entry = new Entry<>(System.nanoTime());
+        entry.complete(value, this.ttlNanos);
+        this.store.put(key, entry);
+    }
+
+    /**
+     * Drops the key, so the next read loads it again.
+     */
+    public void invalidate(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        this.store.compute(key, (k, entry) -> null);
+    }
+
+    public long size() {
+        return this.store.size();
+    }
+
+    /**
+     * Installs a pending entry unless another caller already has, and runs the loader if this call installed it.
+     *
+     * @param stale the expired entry seen, or null
+     * @return the entry to wait on
+     */
+    private Entry<V> loadOnce(K key, Entry<V> stale) {
+        Entry<V> pending = new Entry<>(System.nanoTime());
+        Entry<V> winner = this.store.compute(key, (k, current) ->
+                current == null || current == stale || current.isExpired(System.nanoTime()) ? pending : current);
+        if (winner == pending) {
+            load(key, pending);
+        }
+        return winner;
+    }
+
+    private void load(K key, Entry<V> pending) {
+        try {
+            V value = this.loader.load(key);
+            pending.complete(value, value == null ? this.negativeTtlNanos : this.ttlNanos);
+            if (value == null && this.negativeTtlNanos == 0) {
+                this.store.remove(key, pending);
+            }
+        } catch (Throwable e) {
+            // Whatever the loader threw, the waiters must be released and the next read must load again
+            pending.future.completeExceptionally(e);
+            this.store.remove(key, pending);
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+    }
+
+    /**
+     * Starts one background reload of a live entry. Readers keep getting the current value until the new one is
+     * swapped in, and it is only swapped in if the entry hasn't been replaced in the meantime.
+     */
+    private void refresh(K key, Entry<V> current) {
+        if (!current.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.refreshExecutor.execute(() -> {
+                try {
+                    V value = this.loader.load(key);
+                    Entry<V> fresh = new Entry<>(System.nanoTime());
+                    fresh.complete(value, value == null ? this.negativeTtlNanos : this.ttlNanos);
+                    this.store.compute(key, (k, entry) -> entry == current ? fresh : entry);
+                } catch (Throwable e) {
+                    // Keep serving the current value until it expires; a later read may try again
+                    current.refreshing.set(false);
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    } else if (e instanceof Error) {
+                        throw (Error) e;
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            current.refreshing.set(false);
+        }
+    }
+
+    private static final class Entry<V> {
+        private final CompletableFuture<V> future;
+        private final long loadStartedAt;
+        private final AtomicBoolean refreshing;
+        // Written before the future completes, and only read once it has
+        private volatile long expiresAt;
+
+        Entry(long loadStartedAt) {
+            this.future = new CompletableFuture<>();
+            this.loadStartedAt = loadStartedAt;
+            this.refreshing = new AtomicBoolean();
+        }
+
+        void complete(V value, long ttlNanos) {
+            this.expiresAt = System.nanoTime() + ttlNanos;
+            this.future.complete(value);
+        }
+
+        boolean isExpired(long now) {
+            // A load in flight is never expired: waiting for it is the point
+            return this.future.isDone() && now - this.expiresAt >= 0;
+        }
+
+        boolean needsRefresh(long now, long refreshAfterNanos) {
+            return this.future.isDone() && !this.future.isCompletedExceptionally()
+                    && now - this.loadStartedAt >= refreshAfterNanos;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        AtomicInteger backendCalls = new AtomicInteger();
+        LoadingKVCache<String, String> cache = new LoadingKVCache<>(key -> {
+            backendCalls.incrementAndGet();
+            Thread.sleep(100);
+            return key.startsWith("user:") ? key.toUpperCase() : null;
+        }, 2, 1, 1, TimeUnit.SECONDS);
+
+        // 64 concurrent misses on one hot key and on one missing key cost two backend calls
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        for (int i = 0; i < 64; i++) {
+            executor.execute(() -> {
+                cache.get("user:42");
+                cache.getOrNull("ghost");
+            });
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+            executor.shutdownNow();
+        }
+        System.out.println("Backend calls after the stampede: " + backendCalls.get());
+
+        // Past refreshAfter the read returns at once and one reload runs in the background
+        Thread.sleep(1_100);
+        long start = System.nanoTime();
+        System.out.println(cache.get("user:42") + " served in "
+                + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + " us");
+        Thread.sleep(300);
+        System.out.println("Backend calls after refresh-ahead: " + backendCalls.get());
+    }
+}
@@ -0,0 +1,272 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Segmented concurrent KV store specialised for {@code long} keys and {@code long} values. It has the same shape as
+ * {@link ImprovedSimpleConcurrentKVStore}, but each segment keeps its entries in primitive open-addressing arrays
+ * (linear probing, backward shift on delete), so get and put never box and never allocate unless the segment grows.
+ */
+public class LongLongKVStore {
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int DEFAULT_SEGMENT_CAPACITY = 16;
+    private final Segment[] segments;
+    private final int numberOfSegments;
+
+    public LongLongKVStore(int numberOfSegments) {
+        if (numberOfSegments <= 0) {
+            throw new IllegalArgumentException("Number of segments must be positive");
+        }
+        this.segments = new Segment[numberOfSegments];
+        this.numberOfSegments = numberOfSegments;
+        for (int i = 0; i < numberOfSegments; i++) {
+            this.segments[i] = new Segment(DEFAULT_SEGMENT_CAPACITY);
+        }
+    }
+
+    public LongLongKVStore() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the value mapped to the key
+     * @throws IllegalArgumentException if the key doesn't exist; use {@link #getOrDefault(long, long)} on paths where
+     *                                  misses are common, since the exception allocates
+     */
+    public long get(long key) {
+        long hash = KVHashing.mix64(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key, hash);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+            }
+            return segment.values[slot];
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Looks up the key without throwing or allocating on a miss.
+     *
+     * @param key     the key to look up
+     * @param missing the value to return if the key doesn't exist
+     * @return the value mapped to the key, or {@code missing} if it doesn't exist
+     */
+    public long getOrDefault(long key, long missing) {
+        long hash = KVHashing.mix64(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key, hash);
+            return slot < 0 ? missing : segment.values[slot];
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void put(long key, long value) {
+        long hash = KVHashing.mix64(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            segment.insert(key, hash, value);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Atomically adds the delta to the value of the key, treating an absent key as zero.
+     *
+     * @param key   the counter key
+     * @param delta the amount to add
+     * @return the updated value
+     */
+    public long addAndGet(long key, long delta) {
+        long hash = KVHashing.mix64(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key, hash);
+            if (slot < 0) {
+                segment.insert(key, hash, delta);
+                return delta;
+            }
+            return segment.values[slot] += delta;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * @param key the key to remove
+     * @return the value that was mapped to the key
+     * @throws IllegalArgumentException if the key doesn't exist
+     */
+    public long delete(long key) {
+        long hash = KVHashing.mix64(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key, hash);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Invalid key or it doesn't exist");
+            }
+            long value = segment.values[slot];
+            segment.removeAt(slot);
+            return value;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public boolean containsKey(long key) {
+        long hash = KVHashing.mix64(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            return segment.find(key, hash) >= 0;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(long hash) {
+        return this.segments[KVHashing.segmentFor((int) (hash >>> 32), this.numberOfSegments)];
+    }
+
+    /**
+     * One lock-protected open-addressing table. Only accessed while holding {@link #lock}.
+     */
+    private static final class Segment {
+        private final Lock lock = new ReentrantLock();
+        private long[] keys;
+        private long[] values;
+        private boolean[] used;
+        private int size;
+
+        Segment(int capacity) {
+            int tableSize = KVHashing.tableSizeFor(capacity);
+            this.keys = new long[tableSize];
+            this.values = new long[tableSize];
+            this.used = new boolean[tableSize];
+        }
+
+        int find(long key, long hash) {
+            int mask = this.keys.length - 1;
+            int slot = (int) hash & mask;
+            while (this.used[slot]) {
+                if (this.keys[slot] == key) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(long key, long hash, long value) {
+            int mask = this.keys.length - 1;
+            int slot = (int) hash & mask;
+            while (this.used[slot]) {
+                if (this.keys[slot] == key) {
+                    this.values[slot] = value;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            this.keys[slot] = key;
+            this.values[slot] = value;
+            this.used[slot] = true;
+            if (++this.size > (this.keys.length >>> 2) * 3) {
+                resize();
+            }
+        }
+
+        void removeAt(int slot) {
+            int mask = this.keys.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            // Backward shift: pull later entries of the same probe run into the hole so no tombstones are needed.
+            while (this.used[next]) {
+                int home = (int) KVHashing.mix64(this.keys[next]) & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    this.keys[hole] = this.keys[next];
+                    this.values[hole] = this.values[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            this.used[hole] = false;
+            this.size--;
+        }
+
+        private void resize() {
+            long[] oldKeys = this.keys;
+            long[] oldValues = this.values;
+            boolean[] oldUsed = this.used;
+            int tableSize = oldKeys.length << 1;
+            this.keys = new long[tableSize];
+            this.values = new long[tableSize];
+            this.used = new boolean[tableSize];
+            int mask = tableSize - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldUsed[i]) {
+                    int slot = (int) KVHashing.mix64(oldKeys[i]) & mask;
+                    while (this.used[slot]) {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.keys[slot] = oldKeys[i];
+                    this.values[slot] = oldValues[i];
+                    this.used[slot] = true;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        LongLongKVStore counters = new LongLongKVStore();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                for (long id = 0; id < 100_000; id++) {
+                    counters.addAndGet(id % 1_000, 1);
+                }
+            });
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(8000, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+
+        System.out.println("Distinct keys (expected 1000): " + counters.size());
+        System.out.println("Counter for id 42 (expected 400): " + counters.get(42));
+        System.out.println("Deleted id 42: " + counters.delete(42) + ", now reads as: " + counters.getOrDefault(42, 0));
+    }
+}
@@ -0,0 +1,408 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Multi-version KV store on top of {@link ImprovedSimpleConcurrentKVStore} with snapshot reads and optimistic
+ * multi-key transactions.
+ * <p>
+ * Every key maps to a chain of versions, newest first, each stamped with the commit timestamp of the transaction that
+ * wrote it (a null value marks a delete). A transaction reads as of the last commit published when it began. Reads
+ * only walk the chain to the newest version no later than that timestamp, so a long-running reader never blocks or is
+ * blocked by writers.
+ * <p>
+ * Writes are buffered in the transaction. Commit validates that nothing the transaction read has changed since and
+ * that no key it writes was committed by someone else in the meantime (first committer wins). If validation passes,
+ * it installs the new versions and then publishes the commit timestamp, so readers never see half of a commit. Only
+ * validation and installation run under one short commit lock; no segment locks are held together, so there is
+ * nothing to deadlock on. Versions older than the oldest running reader needs are trimmed whenever a key is written,
+ * and a deleted key is dropped at once unless a running reader is older than the delete; then its tombstone stays
+ * until the key is written again.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class MvccKVStore<K, V> {
+    private final ImprovedSimpleConcurrentKVStore<K, Version<V>> store;
+    private final AtomicLong clock;
+    private final Lock commitLock;
+    // Read timestamps of open transactions, with how many transactions read at each
+    private final ConcurrentSkipListMap<Long, Integer> activeReadTimestamps;
+
+    public MvccKVStore(int numberOfSegments) {
+        this.store = new ImprovedSimpleConcurrentKVStore<>(numberOfSegments);
+        this.clock = new AtomicLong();
+        this.commitLock = new ReentrantLock();
+        this.activeReadTimestamps = new ConcurrentSkipListMap<>();
+    }
+
+    public MvccKVStore() {
+        this(16);
+    }
+
+    /**
+     * Starts a transaction that reads as of the latest published commit. Transactions must be closed, by
+     * {@link Transaction#commit()}, {@link Transaction#close()} or try-with-resources, so old versions can be trimmed.
+     */
+    public Transaction begin() {
+        return new Transaction(acquireReadTimestamp());
+    }
+
+    /**
+     * Registers a reader at the latest published commit and returns its timestamp. Versions that timestamp can see are
+     * kept until {@link #unregister(long)}.
+     */
+    private long acquireReadTimestamp() {
+        long readTimestamp = this.clock.get();
+        register(readTimestamp);
+        // A commit published between reading the clock and registering may already have trimmed versions this
+        // timestamp needs, so move up to the newer snapshot until the clock is stable.
+        while (this.clock.get() != readTimestamp) {
+            unregister(readTimestamp);
+            readTimestamp = this.clock.get();
+            register(readTimestamp);
+        }
+        return readTimestamp;
+    }
+
+    /**
+     * Runs the work in a transaction and commits it, starting over on conflicts.
+     *
+     * @return what the work returned in the committed attempt
+     */
+    public <R> R execute(Function<Transaction, R> work) {
+        for (;;) {
+            try (Transaction transaction = begin()) {
+                R result = work.apply(transaction);
+                if (transaction.commit()) {
+                    return result;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the latest committed value, or null if the key doesn't exist
+     */
+    public V getOrNull(K key) {
+        long readTimestamp = acquireReadTimestamp();
+        try {
+            return readAt(key, readTimestamp);
+        } finally {
+            unregister(readTimestamp);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key doesn't exist
+     */
+    public V get(K key) {
+        V value = getOrNull(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+        }
+        return value;
+    }
+
+    /**
+     * Writes the key in its own transaction, which can't conflict.
+     */
+    public void put(K key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        install(Map.of(key, new Write<>(value)));
+    }
+
+    /**
+     * Deletes the key in its own transaction, which can't conflict.
+     */
+    public void delete(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key or it doesn't exist");
+        }
+        install(Map.of(key, new Write<>(null)));
+    }
+
+    /**
+     * @return the timestamp of the latest published commit
+     */
+    public long lastCommitTimestamp() {
+        return this.clock.get();
+    }
+
+    private V readAt(K key, long timestamp) {
+        Version<V> version = visible(this.store.getOrNull(key), timestamp);
+        return version == null ? null : version.value;
+    }
+
+    private static <V> Version<V> visible(Version<V> version, long timestamp) {
+        while (version != null && version.commitTimestamp > timestamp) {
+            version = version.older;
+        }
+        return version;
+    }
+
+    private static long timestampOf(Version<?> version) {
+        return version == null ? 0 : version.commitTimestamp;
+    }
+
+    /**
+     * Installs the writes under a new commit timestamp and publishes it. Must not be called with the commit lock held.
+     */
+    private long install(Map<K, Write<V>> writes) {
+        this.commitLock.lock();
+        try {
+            return installLocked(writes);
+        } finally {
+            this.commitLock.unlock();
+        }
+    }
+
+    private long installLocked(Map<K, Write<V>> writes) {
+        long commitTimestamp = this.clock.get() + 1;
+        long oldestNeeded = oldestReadTimestamp();
+        for (Map.Entry<K, Write<V>> write : writes.entrySet()) {
+            this.store.compute(write.getKey(), (key, head) -> {
+                Version<V> newest = new Version<>(commitTimestamp, write.getValue().value, head);
+                trim(newest, oldestNeeded);
+                return newest;
+            });
+        }
+        this.clock.set(commitTimestamp);
+        dropDeletes(writes, commitTimestamp);
+        return commitTimestamp;
+    }
+
+    /**
+     * Removes the keys the commit deleted if no reader can see them as anything else. Readers that register from now on
+     * read at the commit or later, since one that read the clock before it was published finds it changed and moves
+     * up, so only the readers registered already matter. Must be called with the commit lock held.
+     */
+    private void dropDeletes(Map<K, Write<V>> writes, long commitTimestamp) {
+        if (oldestReadTimestamp() < commitTimestamp) {
+            return;
+        }
+        for (Map.Entry<K, Write<V>> write : writes.entrySet()) {
+            if (write.getValue().value == null) {
+                this.store.compute(write.getKey(), (key, head) ->
+                        head != null && head.commitTimestamp == commitTimestamp ? null : head);
+            }
+        }
+    }
+
+    /**
+     * Cuts the chain after the newest version that every open and future reader at or after {@code oldestNeeded} can
+     * use. Readers walking the chain at the same time only ever need versions up to that one.
+     */
+    private static <V> void trim(Version<V> newest, long oldestNeeded) {
+        Version<V> boundary = visible(newest, oldestNeeded);
+        if (boundary != null) {
+            boundary.older = null;
+        }
+    }
+
+    private long oldestReadTimestamp() {
+        Map.Entry<Long, Integer> oldest = this.activeReadTimestamps.firstEntry();
+        return oldest == null ? this.clock.get() : Math.min(oldest.getKey(), this.clock.get());
+    }
+
+    private void register(long readTimestamp) {
+        this.activeReadTimestamps.merge(readTimestamp, 1, Integer::sum);
+    }
+
+    private void unregister(long readTimestamp) {
+        this.activeReadTimestamps.computeIfPresent(readTimestamp, (timestamp, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * A snapshot-isolated, optimistically validated unit of work. Not thread safe; use one per thread.
+     */
+    public final class Transaction implements AutoCloseable {
+        private final long readTimestamp;
+        // Commit timestamp of the version each read observed, 0 if the key didn't exist
+        private final Map<K, Long> reads;
+        private final Map<K, Write<V>> writes;
+        private boolean closed;
+
+        private Transaction(long readTimestamp) {
+            this.readTimestamp = readTimestamp;
+            this.reads = new HashMap<>();
+            this.writes = new HashMap<>();
+        }
+
+        /**
+         * @return the value as of the transaction's snapshot including its own writes, or null if absent
+         */
+        public V getOrNull(K key) {
+            ensureOpen();
+            Write<V> write = this.writes.get(key);
+            if (write != null) {
+                return write.value;
+            }
+            Version<V> version = visible(store.getOrNull(key), this.readTimestamp);
+            this.reads.putIfAbsent(key, timestampOf(version));
+            return version == null ? null : version.value;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the key doesn't exist in the snapshot
+         */
+        public V get(K key) {
+            V value = getOrNull(key);
+            if (value == null) {
+                throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+            }
+            return value;
+        }
+
+        public void put(K key, V value) {
+            if (key == null || value == null) {
+                throw new IllegalArgumentException("Invalid key or value");
+            }
+            ensureOpen();
+            this.writes.put(key, new Write<>(value));
+        }
+
+        public void delete(K key) {
+            if (key == null) {
+                throw new IllegalArgumentException("Invalid key or it doesn't exist");
+            }
+            ensureOpen();
+            this.writes.put(key, new Write<>(null));
+        }
+
+        public long readTimestamp() {
+            return this.readTimestamp;
+        }
+
+        /**
+         * Validates the reads and writes against the commits published since the snapshot and, if none conflict,
+         * installs the writes atomically. The transaction is closed either way.
+         *
+         * @return true if the transaction committed, false if it conflicted and should be retried
+         */
+        public boolean commit() {
+            ensureOpen();
+            try {
+                if (this.writes.isEmpty()) {
+                    return true;
+                }
+                commitLock.lock();
+                try {
+                    for (Map.Entry<K, Long> read : this.reads.entrySet()) {
+                        if (timestampOf(store.getOrNull(read.getKey())) != read.getValue()) {
+                            return false;
+                        }
+                    }
+                    for (K key : this.writes.keySet()) {
+                        if (timestampOf(store.getOrNull(key)) > this.readTimestamp) {
+                            return false;
+                        }
+                    }
+                    installLocked(this.writes);
+                    return true;
+                } finally {
+                    commitLock.unlock();
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Abandons the transaction if it hasn't committed.
+         */
+        @Override
+        public void close() {
+            if (!this.closed) {
+                this.closed = true;
+                unregister(this.readTimestamp);
+            }
+        }
+
+        private void ensureOpen() {
+            if (this.closed) {
+                throw new IllegalStateException("Transaction is closed");
+            }
+        }
+    }
+
+    private static final class Version<V> {
+        private final long commitTimestamp;
+        private final V value;
+        private volatile Version<V> older;
+
+        Version(long commitTimestamp, V value, Version<V> older) {
+            this.commitTimestamp = commitTimestamp;
+            this.value = value;
+            this.older = older;
+        }
+    }
+
+    private static final class Write<V> {
+        private final V value;
+
+        Write(V value) {
+            this.value = value;
+        }
+    }
+
+    public static void main(String[] args) {
+        MvccKVStore<String, Long> accounts = new MvccKVStore<>();
+        accounts.put("alice", 500L);
+        accounts.put("bob", 500L);
+
+        // Concurrent transfers keep the invariant alice + bob == 1000
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            final boolean toBob = t % 2 == 0;
+            executor.execute(() -> {
+                for (int i = 0; i < 1_000; i++) {
+                    accounts.execute(transaction -> {
+                        String from = toBob ? "alice" : "bob";
+                        String to = toBob ? "bob" : "alice";
+                        long balance = transaction.get(from);
+                        if (balance > 0) {
+                            transaction.put(from, balance - 1);
+                            transaction.put(to, transaction.get(to) + 1);
+                        }
+                        return null;
+                    });
+                }
+            });
+        }
+        // A snapshot reader running alongside the writers always sees a consistent total
+        executor.execute(() -> {
+            for (int i = 0; i < 1_000; i++) {
+                try (MvccKVStore<String, Long>.Transaction snapshot = accounts.begin()) {
+                    long total = snapshot.get("alice") + snapshot.get("bob");
+                    if (total != 1_000) {
+                        System.out.println("Inconsistent snapshot: " + total);
+                    }
+                }
+            }
+        });
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+
+        System.out.println("alice=" + accounts.get("alice") + ", bob=" + accounts.get("bob")
+                + ", commits=" + accounts.lastCommitTimestamp());
+    }
+}
@@ -0,0 +1,385 @@
+package dileepshah.dev.os.concurrency;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Segmented concurrent KV store for {@code byte[]} keys and values that keeps the bytes in native memory.
+ * <p>
+ * Every segment owns an arena of direct {@link ByteBuffer} slabs. Entries are written as
+ * {@code [keyLength][valueLength][key][value]} into a block of the smallest fitting power-of-two size class, and freed
+ * blocks go to a per size class free list to be reused by later puts. The only per-entry state left on the heap is an
+ * open-addressing index of {@code long} block addresses and {@code int} hashes, so heap usage and GC work don't depend
+ * on the size of the stored values.
+ */
+public class OffHeapKVStore {
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int DEFAULT_SLAB_SIZE = 1 << 20;
+    private static final int MIN_BLOCK_SIZE = 32;
+    private static final int HEADER_SIZE = 8;
+    private final Segment[] segments;
+    private final int numberOfSegments;
+
+    /**
+     * @param numberOfSegments the number of independently locked segments
+     * @param slabSize         the size of a native slab in bytes, which is also the largest entry that can be stored
+     */
+    public OffHeapKVStore(int numberOfSegments, int slabSize) {
+        if (numberOfSegments <= 0) {
+            throw new IllegalArgumentException("Number of segments must be positive");
+        }
+        if (slabSize < MIN_BLOCK_SIZE || Integer.bitCount(slabSize) != 1) {
+            throw new IllegalArgumentException("Slab size must be a power of two of at least " + MIN_BLOCK_SIZE);
+        }
+        this.segments = new Segment[numberOfSegments];
+        this.numberOfSegments = numberOfSegments;
+        for (int i = 0; i < numberOfSegments; i++) {
+            this.segments[i] = new Segment(slabSize);
+        }
+    }
+
+    public OffHeapKVStore() {
+        this(DEFAULT_SEGMENTS, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * @param key the key to look up
+     * @return a heap copy of the value mapped to the key
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public byte[] get(byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+        }
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key, hash);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+            }
+            return segment.arena.readValue(segment.addresses[slot]);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void put(byte[] key, byte[] value) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid value");
+        }
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            segment.insert(key, hash, value);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * @param key the key to remove
+     * @return a heap copy of the value that was mapped to the key
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public byte[] delete(byte[] key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key or it doesn't exist");
+        }
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            int slot = segment.find(key, hash);
+            if (slot < 0) {
+                throw new IllegalArgumentException("Invalid key or it doesn't exist");
+            }
+            long address = segment.addresses[slot];
+            byte[] value = segment.arena.readValue(address);
+            segment.arena.free(address);
+            segment.removeAt(slot);
+            return value;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public boolean containsKey(byte[] key) {
+        if (key == null) {
+            return false;
+        }
+        int hash = hash(key);
+        Segment segment = segmentFor(hash);
+        segment.lock.lock();
+        try {
+            return segment.find(key, hash) >= 0;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of native bytes reserved by all segment arenas
+     */
+    public long offHeapBytes() {
+        long bytes = 0;
+        for (Segment segment : this.segments) {
+            segment.lock.lock();
+            try {
+                bytes += (long) segment.arena.slabs.size() * segment.arena.slabSize;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    private static int hash(byte[] key) {
+        return KVHashing.mix32(Arrays.hashCode(key));
+    }
+
+    private Segment segmentFor(int hash) {
+        return this.segments[KVHashing.segmentFor(hash, this.numberOfSegments)];
+    }
+
+    /**
+     * On-heap index of one segment. Slots hold the native address of the entry block (0 for an empty slot) and the
+     * full hash of its key, so probes only touch native memory when the hashes match.
+     */
+    private static final class Segment {
+        private final Lock lock = new ReentrantLock();
+        private final Arena arena;
+        private long[] addresses;
+        private int[] hashes;
+        private int size;
+
+        Segment(int slabSize) {
+            this.arena = new Arena(slabSize);
+            this.addresses = new long[16];
+            this.hashes = new int[16];
+        }
+
+        int find(byte[] key, int hash) {
+            int mask = this.addresses.length - 1;
+            int slot = hash & mask;
+            while (this.addresses[slot] != 0) {
+                if (this.hashes[slot] == hash && this.arena.keyEquals(this.addresses[slot], key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(byte[] key, int hash, byte[] value) {
+            long address = this.arena.write(key, value);
+            int mask = this.addresses.length - 1;
+            int slot = hash & mask;
+            while (this.addresses[slot] != 0) {
+                if (this.hashes[slot] == hash && this.arena.keyEquals(this.addresses[slot], key)) {
+                    this.arena.free(this.addresses[slot]);
+                    this.addresses[slot] = address;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            this.addresses[slot] = address;
+            this.hashes[slot] = hash;
+            if (++this.size > (this.addresses.length >>> 2) * 3) {
+                resize();
+            }
+        }
+
+        void removeAt(int slot) {
+            int mask = this.addresses.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (this.addresses[next] != 0) {
+                int home = this.hashes[next] & mask;
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    this.addresses[hole] = this.addresses[next];
+                    this.hashes[hole] = this.hashes[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            this.addresses[hole] = 0;
+            this.size--;
+        }
+
+        private void resize() {
+            long[] oldAddresses = this.addresses;
+            int[] oldHashes = this.hashes;
+            this.addresses = new long[oldAddresses.length << 1];
+            this.hashes = new int[oldAddresses.length << 1];
+            int mask = this.addresses.length - 1;
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] != 0) {
+                    int slot = oldHashes[i] & mask;
+                    while (this.addresses[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.addresses[slot] = oldAddresses[i];
+                    this.hashes[slot] = oldHashes[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Slab allocator of one segment. A slab is dedicated to a single size class and carved by bumping an offset;
+     * freed blocks are pushed on the free list of their class. An address is {@code (slabIndex + 1) << 32 | offset},
+     * which is never 0.
+     */
+    private static final class Arena {
+        private final int slabSize;
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private final int[] currentSlab;
+        private final int[] bumpOffset;
+        private final long[][] freeLists;
+        private final int[] freeCounts;
+
+        Arena(int slabSize) {
+            this.slabSize = slabSize;
+            int sizeClasses = Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE) + 1;
+            this.currentSlab = new int[sizeClasses];
+            this.bumpOffset = new int[sizeClasses];
+            this.freeLists = new long[sizeClasses][8];
+            this.freeCounts = new int[sizeClasses];
+            Arrays.fill(this.currentSlab, -1);
+        }
+
+        long write(byte[] key, byte[] value) {
+            long recordSize = (long) HEADER_SIZE + key.length + value.length;
+            if (recordSize > this.slabSize) {
+                throw new IllegalArgumentException("Entry of " + recordSize + " bytes exceeds slab size " + this.slabSize);
+            }
+            long address = allocate(sizeClassFor((int) recordSize));
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            slab.putInt(offset, key.length);
+            slab.putInt(offset + 4, value.length);
+            slab.put(offset + HEADER_SIZE, key);
+            slab.put(offset + HEADER_SIZE + key.length, value);
+            return address;
+        }
+
+        byte[] readValue(long address) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            byte[] value = new byte[slab.getInt(offset + 4)];
+            slab.get(offset + HEADER_SIZE + slab.getInt(offset), value);
+            return value;
+        }
+
+        boolean keyEquals(long address, byte[] key) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            if (slab.getInt(offset) != key.length) {
+                return false;
+            }
+            int start = offset + HEADER_SIZE;
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(start + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void free(long address) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            int sizeClass = sizeClassFor(HEADER_SIZE + slab.getInt(offset) + slab.getInt(offset + 4));
+            if (this.freeCounts[sizeClass] == this.freeLists[sizeClass].length) {
+                this.freeLists[sizeClass] = Arrays.copyOf(this.freeLists[sizeClass], this.freeCounts[sizeClass] << 1);
+            }
+            this.freeLists[sizeClass][this.freeCounts[sizeClass]++] = address;
+        }
+
+        private long allocate(int sizeClass) {
+            if (this.freeCounts[sizeClass] > 0) {
+                return this.freeLists[sizeClass][--this.freeCounts[sizeClass]];
+            }
+            int blockSize = MIN_BLOCK_SIZE << sizeClass;
+            if (this.currentSlab[sizeClass] < 0 || this.bumpOffset[sizeClass] + blockSize > this.slabSize) {
+                this.slabs.add(ByteBuffer.allocateDirect(this.slabSize));
+                this.currentSlab[sizeClass] = this.slabs.size() - 1;
+                this.bumpOffset[sizeClass] = 0;
+            }
+            int offset = this.bumpOffset[sizeClass];
+            this.bumpOffset[sizeClass] += blockSize;
+            return ((long) (this.currentSlab[sizeClass] + 1) << 32) | offset;
+        }
+
+        private ByteBuffer slabOf(long address) {
+            return this.slabs.get((int) (address >>> 32) - 1);
+        }
+
+        private static int offsetOf(long address) {
+            return (int) address;
+        }
+
+        private static int sizeClassFor(int recordSize) {
+            int blockSize = Math.max(MIN_BLOCK_SIZE, KVHashing.tableSizeFor(recordSize));
+            return Integer.numberOfTrailingZeros(blockSize) - Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE);
+        }
+    }
+
+    public static void main(String[] args) {
+        OffHeapKVStore store = new OffHeapKVStore();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    byte[] key = ("key-" + thread + "-" + i).getBytes(StandardCharsets.UTF_8);
+                    store.put(key, new byte[100 + i % 400]);
+                }
+            });
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(8000, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+
+        byte[] key = "key-0-7".getBytes(StandardCharsets.UTF_8);
+        System.out.println("Entries: " + store.size() + ", native bytes: " + store.offHeapBytes());
+        System.out.println("Value length for key-0-7 (expected 107): " + store.get(key).length);
+        store.delete(key);
+        store.put(key, "reused block".getBytes(StandardCharsets.UTF_8));
+        System.out.println("After delete and put: " + new String(store.get(key), StandardCharsets.UTF_8));
+    }
+}
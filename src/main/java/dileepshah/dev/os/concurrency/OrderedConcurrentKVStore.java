@@ -0,0 +1,220 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sorted concurrent KV store with the same {@code get}/{@code put}/{@code delete} API as
+ * {@link ImprovedSimpleConcurrentKVStore}, plus ordered queries: floor/ceiling lookups, ascending and descending range
+ * iterators and prefix scans.
+ * <p>
+ * Entries live in a lock-free skip list ({@link ConcurrentSkipListMap}), so a range query walks only the towers between
+ * its bounds, O(log n + range), instead of scanning every segment. Iterators are weakly consistent: they never block
+ * writers, never throw {@link java.util.ConcurrentModificationException}, and reflect each key as it was at some point
+ * during the scan. Entries handed out are immutable snapshots.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class OrderedConcurrentKVStore<K, V> {
+    private final ConcurrentSkipListMap<K, V> store;
+
+    public OrderedConcurrentKVStore(Comparator<? super K> comparator) {
+        this.store = new ConcurrentSkipListMap<>(comparator);
+    }
+
+    /**
+     * Orders the keys by their natural ordering, so they must implement {@link Comparable}.
+     */
+    public OrderedConcurrentKVStore() {
+        this.store = new ConcurrentSkipListMap<>();
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public V get(K key) {
+        V value = getOrNull(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+        }
+        return value;
+    }
+
+    public V getOrNull(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        return this.store.get(key);
+    }
+
+    public boolean containsKey(K key) {
+        return key != null && this.store.containsKey(key);
+    }
+
+    /**
+     * @return the previous value mapped to the key, or null if there was none
+     */
+    public V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        return this.store.put(key, value);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public V delete(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key or it doesn't exist");
+        }
+        V value = this.store.remove(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or it doesn't exist");
+        }
+        return value;
+    }
+
+    /**
+     * @return the entry with the greatest key less than or equal to the given key, or null if there is none
+     */
+    public Map.Entry<K, V> floor(K key) {
+        return this.store.floorEntry(key);
+    }
+
+    /**
+     * @return the entry with the least key greater than or equal to the given key, or null if there is none
+     */
+    public Map.Entry<K, V> ceiling(K key) {
+        return this.store.ceilingEntry(key);
+    }
+
+    public Map.Entry<K, V> first() {
+        return this.store.firstEntry();
+    }
+
+    public Map.Entry<K, V> last() {
+        return this.store.lastEntry();
+    }
+
+    /**
+     * Iterates the keys between the bounds in ascending order. A null bound leaves that side of the range open.
+     */
+    public Iterator<Map.Entry<K, V>> range(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        return subMap(from, fromInclusive, to, toInclusive).entrySet().iterator();
+    }
+
+    /**
+     * Iterates the keys between the bounds in descending order, starting at {@code to}. A null bound leaves that side
+     * of the range open.
+     */
+    public Iterator<Map.Entry<K, V>> descendingRange(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        return subMap(from, fromInclusive, to, toInclusive).descendingMap().entrySet().iterator();
+    }
+
+    /**
+     * Iterates, in ascending order, the keys whose string form starts with the prefix. Meant for {@link CharSequence}
+     * keys ordered lexicographically, where every match sits in one contiguous run that starts at the prefix itself.
+     *
+     * @throws IllegalArgumentException if the prefix isn't a {@link CharSequence}
+     */
+    public Iterator<Map.Entry<K, V>> prefixScan(K prefix) {
+        if (!(prefix instanceof CharSequence)) {
+            throw new IllegalArgumentException("Prefix scans need CharSequence keys");
+        }
+        String start = prefix.toString();
+        Iterator<Map.Entry<K, V>> tail = this.store.tailMap(prefix, true).entrySet().iterator();
+        return new Iterator<>() {
+            private Map.Entry<K, V> next = advance();
+
+            private Map.Entry<K, V> advance() {
+                if (tail.hasNext()) {
+                    Map.Entry<K, V> entry = tail.next();
+                    if (entry.getKey().toString().startsWith(start)) {
+                        return entry;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next != null;
+            }
+
+            @Override
+            public Map.Entry<K, V> next() {
+                if (this.next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<K, V> current = this.next;
+                this.next = advance();
+                return current;
+            }
+        };
+    }
+
+    public int size() {
+        return this.store.size();
+    }
+
+    private NavigableMap<K, V> subMap(K from, boolean fromInclusive, K to, boolean toInclusive) {
+        if (from == null && to == null) {
+            return this.store;
+        }
+        if (from == null) {
+            return this.store.headMap(to, toInclusive);
+        }
+        if (to == null) {
+            return this.store.tailMap(from, fromInclusive);
+        }
+        return this.store.subMap(from, fromInclusive, to, toInclusive);
+    }
+
+    public static void main(String[] args) {
+        OrderedConcurrentKVStore<String, Integer> store = new OrderedConcurrentKVStore<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < 1_000; i++) {
+                    store.put(String.format("user:%d:%04d", thread, i), i);
+                }
+            });
+        }
+        // A scan running while the writers are busy neither blocks them nor fails.
+        executor.execute(() -> {
+            int seen = 0;
+            for (Iterator<Map.Entry<String, Integer>> it = store.prefixScan("user:1:"); it.hasNext(); it.next()) {
+                seen++;
+            }
+            System.out.println("Concurrent prefix scan saw " + seen + " entries");
+        });
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(8000, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+
+        System.out.println("Floor of user:2:0500x: " + store.floor("user:2:0500x"));
+        System.out.println("Ceiling of user:3: " + store.ceiling("user:3:"));
+        Iterator<Map.Entry<String, Integer>> descending =
+                store.descendingRange("user:0:0100", true, "user:0:0103", true);
+        while (descending.hasNext()) {
+            System.out.println("Descending: " + descending.next());
+        }
+    }
+}
@@ -0,0 +1,566 @@
+package dileepshah.dev.os.concurrency;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client side of a cluster of {@link KVClusterNode}s: shards keys across the nodes with consistent hashing and talks to
+ * them over the {@link KVWireProtocol}.
+ * <p>
+ * Each node owns {@code virtualNodes} points on a 64 bit hash ring and a key belongs to the first point at or after its
+ * hash, so load spreads evenly and adding a node only moves the keys that land on its new points, about 1/n of them.
+ * The ring is immutable and swapped as a whole, so routing never locks.
+ * <p>
+ * Batches are pipelined: {@link #multiGet(List)} and {@link #multiPut(List, List)} group the keys by node and write
+ * each group as one burst of frames before reading the answers, one round trip per node rather than per key.
+ * <p>
+ * {@link #addNode(InetSocketAddress)} switches to the new ring and moves the affected keys in the background. Until the
+ * move finishes, reads that miss on the new owner fall back to the previous one and deletes go to both. Moved entries
+ * are copied with put-if-absent, so a newer write on the new owner always wins, and a copy whose source was deleted
+ * meanwhile is taken back. The sweep runs twice to catch writes that were routed on the old ring just as it switched;
+ * such a write replaces the copy the first sweep made only if the new owner still holds exactly that copy.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class PartitionedKVCluster<K, V> implements AutoCloseable {
+    private static final int CONNECTIONS_PER_NODE = 4;
+
+    private final DurableKVStore.Codec<K> keyCodec;
+    private final DurableKVStore.Codec<V> valueCodec;
+    private final int virtualNodes;
+    private final Map<InetSocketAddress, NodeClient> clients;
+    private final ExecutorService rebalancer;
+    private volatile Ring ring;
+    // The ring keys are moving away from, null when no rebalance is running
+    private volatile Ring previousRing;
+
+    public PartitionedKVCluster(List<InetSocketAddress> nodes, DurableKVStore.Codec<K> keyCodec,
+                                DurableKVStore.Codec<V> valueCodec, int virtualNodes) throws IOException {
+        if (nodes.isEmpty() || virtualNodes <= 0) {
+            throw new IllegalArgumentException("Need at least one node and one virtual node per node");
+        }
+        this.keyCodec = keyCodec;
+        this.valueCodec = valueCodec;
+        this.virtualNodes = virtualNodes;
+        this.clients = new ConcurrentHashMap<>();
+        this.rebalancer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "kv-cluster-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Ring initial = new Ring(new TreeMap<>());
+        for (InetSocketAddress node : nodes) {
+            this.clients.put(node, new NodeClient(node));
+            initial = initial.withNode(node, virtualNodes);
+        }
+        this.ring = initial;
+    }
+
+    public PartitionedKVCluster(List<InetSocketAddress> nodes, DurableKVStore.Codec<K> keyCodec,
+                                DurableKVStore.Codec<V> valueCodec) throws IOException {
+        this(nodes, keyCodec, valueCodec, 128);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public V get(K key) {
+        V value = getOrNull(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+        }
+        return value;
+    }
+
+    public V getOrNull(K key) {
+        byte[] encodedKey = encodeKey(key);
+        long hash = KVHashing.hash64(encodedKey);
+        InetSocketAddress owner = this.ring.ownerOf(hash);
+        byte[] value = getFrom(owner, encodedKey);
+        Ring previous = this.previousRing;
+        if (value == null && previous != null && !previous.ownerOf(hash).equals(owner)) {
+            value = getFrom(previous.ownerOf(hash), encodedKey);
+            if (value == null) {
+                // The rebalancer may have moved it between the two reads
+                value = getFrom(owner, encodedKey);
+            }
+        }
+        return value == null ? null : this.valueCodec.decode(value);
+    }
+
+    public void put(K key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        byte[] encodedKey = encodeKey(key);
+        InetSocketAddress owner = this.ring.ownerOf(KVHashing.hash64(encodedKey));
+        this.clients.get(owner).call(List.of(
+                KVWireProtocol.keyValueRequest(KVWireProtocol.PUT, encodedKey, this.valueCodec.encode(value))));
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public void delete(K key) {
+        byte[] encodedKey = encodeKey(key);
+        long hash = KVHashing.hash64(encodedKey);
+        InetSocketAddress owner = this.ring.ownerOf(hash);
+        boolean deleted = deleteFrom(owner, encodedKey);
+        Ring previous = this.previousRing;
+        if (previous != null && !previous.ownerOf(hash).equals(owner)) {
+            deleted |= deleteFrom(previous.ownerOf(hash), encodedKey);
+            if (!deleted) {
+                // The rebalancer may have moved it between the two deletes
+                deleted = deleteFrom(owner, encodedKey);
+            }
+        }
+        if (!deleted) {
+            throw new IllegalArgumentException("Invalid key or it doesn't exist");
+        }
+    }
+
+    /**
+     * Gets the keys with one pipelined round trip per node.
+     *
+     * @return the values in the order of the keys, null for the missing ones
+     */
+    public List<V> multiGet(List<K> keys) {
+        List<byte[]> encodedKeys = new ArrayList<>(keys.size());
+        for (K key : keys) {
+            encodedKeys.add(encodeKey(key));
+        }
+        List<V> values = new ArrayList<>(Collections.nCopies(keys.size(), null));
+        Map<InetSocketAddress, List<Integer>> byNode = groupByOwner(encodedKeys);
+        for (Map.Entry<InetSocketAddress, List<Integer>> group : byNode.entrySet()) {
+            List<byte[]> requests = new ArrayList<>(group.getValue().size());
+            for (int index : group.getValue()) {
+                requests.add(KVWireProtocol.keyRequest(KVWireProtocol.GET, encodedKeys.get(index)));
+            }
+            List<KVWireProtocol.Response> responses = this.clients.get(group.getKey()).call(requests);
+            for (int i = 0; i < responses.size(); i++) {
+                int index = group.getValue().get(i);
+                byte[] value = valueOf(responses.get(i));
+                if (value == null && this.previousRing != null) {
+                    // Rare: only while rebalancing, so the slow path takes care of the fallback
+                    values.set(index, getOrNull(keys.get(index)));
+                } else if (value != null) {
+                    values.set(index, this.valueCodec.decode(value));
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Puts the entries with one pipelined round trip per node.
+     */
+    public void multiPut(List<K> keys, List<V> values) {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Keys and values must have the same size");
+        }
+        List<byte[]> encodedKeys = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            if (values.get(i) == null) {
+                throw new IllegalArgumentException("Invalid key or value");
+            }
+            encodedKeys.add(encodeKey(keys.get(i)));
+        }
+        Map<InetSocketAddress, List<Integer>> byNode = groupByOwner(encodedKeys);
+        for (Map.Entry<InetSocketAddress, List<Integer>> group : byNode.entrySet()) {
+            List<byte[]> requests = new ArrayList<>(group.getValue().size());
+            for (int index : group.getValue()) {
+                requests.add(KVWireProtocol.keyValueRequest(KVWireProtocol.PUT, encodedKeys.get(index),
+                        this.valueCodec.encode(values.get(index))));
+            }
+            this.clients.get(group.getKey()).call(requests);
+        }
+    }
+
+    /**
+     * Adds a node to the ring and moves the keys it now owns onto it in the background. Rebalances run one at a time,
+     * in the order the nodes were added.
+     *
+     * @return completes with the number of keys moved
+     */
+    public Future<Integer> addNode(InetSocketAddress node) throws IOException {
+        NodeClient client = new NodeClient(node);
+        if (this.clients.putIfAbsent(node, client) != null) {
+            client.close();
+            throw new IllegalArgumentException("Node is already part of the cluster");
+        }
+        return this.rebalancer.submit(() -> {
+            Ring from = this.ring;
+            Ring to = from.withNode(node, this.virtualNodes);
+            this.previousRing = from;
+            this.ring = to;
+            try {
+                // What this rebalance copied to each key's new owner, so the second sweep can tell its copies apart
+                Map<ByteBuffer, byte[]> copied = new HashMap<>();
+                int moved = 0;
+                for (int pass = 0; pass < 2; pass++) {
+                    for (InetSocketAddress source : from.nodes()) {
+                        moved += migrate(source, to, copied);
+                    }
+                }
+                return moved;
+            } finally {
+                this.previousRing = null;
+            }
+        });
+    }
+
+    /**
+     * @return the nodes currently in the ring
+     */
+    public Set<InetSocketAddress> nodes() {
+        return this.ring.nodes();
+    }
+
+    /**
+     * @return how many keys each node holds
+     */
+    public Map<InetSocketAddress, Long> nodeSizes() {
+        Map<InetSocketAddress, Long> sizes = new LinkedHashMap<>();
+        for (InetSocketAddress node : this.ring.nodes()) {
+            KVWireProtocol.Response response = this.clients.get(node).call(List.of(KVWireProtocol.sizeRequest())).get(0);
+            sizes.put(node, response.body.getLong());
+        }
+        return sizes;
+    }
+
+    public long size() {
+        long size = 0;
+        for (long nodeSize : nodeSizes().values()) {
+            size += nodeSize;
+        }
+        return size;
+    }
+
+    /**
+     * Moves every key on the source that the target ring places elsewhere, one page of a store segment at a time.
+     *
+     * @param copied the values copied so far by this rebalance, by key; updated with the copies made now
+     */
+    private int migrate(InetSocketAddress source, Ring target, Map<ByteBuffer, byte[]> copied) {
+        NodeClient sourceClient = this.clients.get(source);
+        int moved = 0;
+        int segments = 1;
+        int segment = 0;
+        long from = 0;
+        while (segment < segments) {
+            KVWireProtocol.Response scan = sourceClient.call(List.of(KVWireProtocol.scanRequest(segment, from))).get(0);
+            segments = scan.body.getInt();
+            boolean more = scan.body.get() != 0;
+            long next = scan.body.getLong();
+            int count = scan.body.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] key = KVWireProtocol.readBytes(scan.body);
+                byte[] value = KVWireProtocol.readBytes(scan.body);
+                InetSocketAddress owner = target.ownerOf(KVHashing.hash64(key));
+                if (owner.equals(source)) {
+                    continue;
+                }
+                NodeClient ownerClient = this.clients.get(owner);
+                byte status = ownerClient.call(List.of(
+                        KVWireProtocol.keyValueRequest(KVWireProtocol.PUT_IF_ABSENT, key, value))).get(0).status;
+                byte[] earlierCopy = copied.get(ByteBuffer.wrap(key));
+                if (status == KVWireProtocol.EXISTS && earlierCopy != null) {
+                    // Written on the source after an earlier sweep moved the key: newer than that copy, unless the
+                    // new owner has had a write of its own since
+                    status = ownerClient.call(List.of(KVWireProtocol.keyValuesRequest(
+                            KVWireProtocol.REPLACE_IF_EQUALS, key, earlierCopy, value))).get(0).status;
+                }
+                if (status == KVWireProtocol.OK) {
+                    copied.put(ByteBuffer.wrap(key), value);
+                }
+                if (!deleteFrom(source, key) && status == KVWireProtocol.OK) {
+                    // Deleted by a client after the scan: take back the copy unless it has been overwritten since
+                    ownerClient.call(List.of(
+                            KVWireProtocol.keyValueRequest(KVWireProtocol.REMOVE_IF_EQUALS, key, value)));
+                }
+                moved++;
+            }
+            if (more) {
+                from = next;
+            } else {
+                segment++;
+                from = 0;
+            }
+        }
+        return moved;
+    }
+
+    private Map<InetSocketAddress, List<Integer>> groupByOwner(List<byte[]> encodedKeys) {
+        Ring current = this.ring;
+        Map<InetSocketAddress, List<Integer>> byNode = new LinkedHashMap<>();
+        for (int i = 0; i < encodedKeys.size(); i++) {
+            InetSocketAddress owner = current.ownerOf(KVHashing.hash64(encodedKeys.get(i)));
+            byNode.computeIfAbsent(owner, node -> new ArrayList<>()).add(i);
+        }
+        return byNode;
+    }
+
+    private byte[] getFrom(InetSocketAddress node, byte[] key) {
+        return valueOf(this.clients.get(node).call(
+                List.of(KVWireProtocol.keyRequest(KVWireProtocol.GET, key))).get(0));
+    }
+
+    private boolean deleteFrom(InetSocketAddress node, byte[] key) {
+        return this.clients.get(node).call(
+                List.of(KVWireProtocol.keyRequest(KVWireProtocol.DELETE, key))).get(0).status == KVWireProtocol.FOUND;
+    }
+
+    private static byte[] valueOf(KVWireProtocol.Response response) {
+        return response.status == KVWireProtocol.FOUND ? KVWireProtocol.readBytes(response.body) : null;
+    }
+
+    private byte[] encodeKey(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        return this.keyCodec.encode(key);
+    }
+
+    @Override
+    public void close() {
+        this.rebalancer.shutdownNow();
+        for (NodeClient client : this.clients.values()) {
+            client.close();
+        }
+    }
+
+    /**
+     * Immutable consistent hash ring from point to node.
+     */
+    private static final class Ring {
+        private final NavigableMap<Long, InetSocketAddress> points;
+
+        Ring(NavigableMap<Long, InetSocketAddress> points) {
+            this.points = points;
+        }
+
+        Ring withNode(InetSocketAddress node, int virtualNodes) {
+            TreeMap<Long, InetSocketAddress> copy = new TreeMap<>(this.points);
+            byte[] name = node.toString().getBytes(StandardCharsets.UTF_8);
+            long seed = KVHashing.hash64(name);
+            for (int i = 0; i < virtualNodes; i++) {
+                copy.put(KVHashing.mix64(seed + i * 0x9e3779b97f4a7c15L), node);
+            }
+            return new Ring(copy);
+        }
+
+        InetSocketAddress ownerOf(long hash) {
+            Map.Entry<Long, InetSocketAddress> point = this.points.ceilingEntry(hash);
+            return (point != null ? point : this.points.firstEntry()).getValue();
+        }
+
+        Set<InetSocketAddress> nodes() {
+            return Set.copyOf(this.points.values());
+        }
+    }
+
+    /**
+     * A few blocking connections to one node. Each call takes one connection, writes all its frames in one go and then
+     * reads the same number of responses, which the node sends back in order. A connection that fails mid-call is
+     * dropped, since whatever the node still sends on it would be read as the answers to later calls, and the next call
+     * on it connects afresh.
+     */
+    private static final class NodeClient {
+        private final Connection[] connections;
+        private volatile boolean closed;
+
+        NodeClient(InetSocketAddress address) throws IOException {
+            this.connections = new Connection[CONNECTIONS_PER_NODE];
+            for (int i = 0; i < this.connections.length; i++) {
+                this.connections[i] = new Connection(address);
+            }
+        }
+
+        List<KVWireProtocol.Response> call(List<byte[]> requests) {
+            Connection connection = acquire();
+            try {
+                if (connection.channel == null) {
+                    if (this.closed) {
+                        throw new IOException("Client is closed");
+                    }
+                    connection.open();
+                }
+                int length = 0;
+                for (byte[] request : requests) {
+                    length += request.length;
+                }
+                ByteBuffer burst = ByteBuffer.allocate(length);
+                for (byte[] request : requests) {
+                    burst.put(request);
+                }
+                burst.flip();
+                while (burst.hasRemaining()) {
+                    connection.channel.write(burst);
+                }
+                List<KVWireProtocol.Response> responses = new ArrayList<>(requests.size());
+                boolean rejected = false;
+                // Read every answer even after a rejection, so the connection stays in step
+                for (int i = 0; i < requests.size(); i++) {
+                    int frameLength = connection.in.readInt();
+                    if (frameLength <= 0 || frameLength > KVWireProtocol.MAX_FRAME) {
+                        throw new IOException("Bad frame length " + frameLength);
+                    }
+                    byte[] frame = new byte[frameLength];
+                    connection.in.readFully(frame);
+                    rejected |= frame[0] == KVWireProtocol.ERROR;
+                    responses.add(new KVWireProtocol.Response(frame[0], ByteBuffer.wrap(frame, 1, frameLength - 1)));
+                }
+                if (rejected) {
+                    throw new IllegalStateException("Node rejected the request");
+                }
+                return responses;
+            } catch (IOException e) {
+                connection.reset();
+                throw new UncheckedIOException("Node request failed", e);
+            } finally {
+                connection.lock.unlock();
+            }
+        }
+
+        private Connection acquire() {
+            for (Connection connection : this.connections) {
+                if (connection.lock.tryLock()) {
+                    return connection;
+                }
+            }
+            Connection connection = this.connections[ThreadLocalRandom.current().nextInt(this.connections.length)];
+            connection.lock.lock();
+            return connection;
+        }
+
+        void close() {
+            this.closed = true;
+            for (Connection connection : this.connections) {
+                SocketChannel channel = connection.channel;
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Nothing left to release
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final InetSocketAddress address;
+        private final ReentrantLock lock;
+        // Guarded by the lock; null from an I/O error until the next call reconnects
+        private volatile SocketChannel channel;
+        private DataInputStream in;
+
+        Connection(InetSocketAddress address) throws IOException {
+            this.address = address;
+            this.lock = new ReentrantLock();
+            open();
+        }
+
+        void open() throws IOException {
+            SocketChannel opened = SocketChannel.open(this.address);
+            try {
+                opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                opened.close();
+                throw e;
+            }
+            this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(opened)));
+            this.channel = opened;
+        }
+
+        void reset() {
+            SocketChannel broken = this.channel;
+            this.channel = null;
+            this.in = null;
+            if (broken != null) {
+                try {
+                    broken.close();
+                } catch (IOException ignored) {
+                    // Dropped either way
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<KVClusterNode> nodes = new ArrayList<>();
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            KVClusterNode node = new KVClusterNode(new InetSocketAddress("127.0.0.1", 0));
+            nodes.add(node);
+            addresses.add(node.address());
+        }
+
+        try (PartitionedKVCluster<String, Long> cluster = new PartitionedKVCluster<>(
+                addresses, DurableKVStore.Codec.utf8(), DurableKVStore.Codec.longs())) {
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                writers.add(executor.submit(() -> {
+                    List<String> keys = new ArrayList<>();
+                    List<Long> values = new ArrayList<>();
+                    for (int i = 0; i < 2_500; i++) {
+                        keys.add("key-" + thread + "-" + i);
+                        values.add((long) i);
+                    }
+                    cluster.multiPut(keys, values);
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            System.out.println("Before adding a node: " + cluster.nodeSizes());
+
+            KVClusterNode added = new KVClusterNode(new InetSocketAddress("127.0.0.1", 0));
+            nodes.add(added);
+            Future<Integer> rebalance = cluster.addNode(added.address());
+            // Reads keep working while keys move
+            Future<?> reader = executor.submit(() -> {
+                for (int i = 0; i < 2_500; i++) {
+                    if (cluster.getOrNull("key-0-" + i) == null) {
+                        System.out.println("Lost key-0-" + i + " during rebalancing");
+                    }
+                }
+            });
+            System.out.println("Moved " + rebalance.get() + " keys");
+            reader.get();
+            System.out.println("After adding a node: " + cluster.nodeSizes() + ", total " + cluster.size());
+            System.out.println("key-3-42 = " + cluster.get("key-3-42"));
+            executor.shutdown();
+        } finally {
+            for (KVClusterNode node : nodes) {
+                node.close();
+            }
+        }
+    }
+}
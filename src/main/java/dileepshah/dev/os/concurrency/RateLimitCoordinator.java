@@ -0,0 +1,139 @@
+package dileepshah.dev.os.concurrency;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * The process that owns the fleet-wide limits of a {@link DistributedRateLimiter}: nodes lease batches of permits from
+ * it and serve requests out of them locally.
+ * <p>
+ * The limits are a {@link SimpleCriterionBasedConcurrentRateLimiter} in the coordinator, so a lease is just a
+ * reservation of up to the asked number of permits; if the limit doesn't have that many left, the lease is cut down to
+ * what it has, possibly nothing. The protocol is a request and a response per lease over a long-lived connection:
+ * <pre>
+ * request:  [int permits][UTF criterion]
+ * response: [int granted]
+ * </pre>
+ * Nodes are few and lease rarely, so each connection gets a thread that blocks on it.
+ */
+public final class RateLimitCoordinator implements AutoCloseable {
+    private final SimpleCriterionBasedConcurrentRateLimiter<String> limits;
+    private final ServerSocket server;
+    private final ExecutorService connections;
+    private final Set<Socket> sockets;
+    private volatile boolean running;
+
+    /**
+     * Starts a coordinator listening on the address; port 0 picks a free port, see {@link #address()}.
+     *
+     * @param strategyFactory Creates the fleet-wide limit of a criterion the first time a node asks for it.
+     */
+    @SuppressWarnings("this-escape")
+    public RateLimitCoordinator(InetSocketAddress bindAddress, Supplier<? extends RateLimitStrategy> strategyFactory)
+            throws IOException {
+        this.limits = new SimpleCriterionBasedConcurrentRateLimiter<>(strategyFactory);
+        this.server = new ServerSocket();
+        this.server.bind(bindAddress);
+        this.connections = Executors.newCachedThreadPool();
+        this.sockets = ConcurrentHashMap.newKeySet();
+        this.running = true;
+        Thread acceptor = new Thread(this::accept, "rate-limit-coordinator-" + address().getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public InetSocketAddress address() {
+        return (InetSocketAddress) this.server.getLocalSocketAddress();
+    }
+
+    /**
+     * Grants as many of the permits as the limit of the criterion has left, halving the ask until it fits.
+     *
+     * @return the permits granted, 0 if the limit has none left
+     */
+    int lease(String criterion, int permits) {
+        for (int ask = permits; ask > 0; ask >>>= 1) {
+            try {
+                if (this.limits.reserve(criterion, ask, 0) == 0) {
+                    return ask;
+                }
+            } catch (IllegalArgumentException e) {
+                // More than the limit admits at once; try with less
+            }
+        }
+        return 0;
+    }
+
+    private void accept() {
+        while (this.running) {
+            try {
+                Socket socket = this.server.accept();
+                socket.setTcpNoDelay(true);
+                this.sockets.add(socket);
+                this.connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (this.running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (this.running) {
+                int permits = in.readInt();
+                String criterion = in.readUTF();
+                out.writeInt(permits > 0 ? lease(criterion, permits) : 0);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            // The node hung up
+        } catch (IOException e) {
+            if (this.running) {
+                // A broken node only loses its own connection
+                System.err.println("Dropping node connection: " + e);
+            }
+        } finally {
+            this.sockets.remove(socket);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.running = false;
+        this.server.close();
+        for (Socket socket : this.sockets) {
+            socket.close();
+        }
+        this.connections.shutdown();
+    }
+
+    /**
+     * Runs a standalone coordinator: {@code RateLimitCoordinator [port] [requestRange] [allowedNoOfRequests]}, with a
+     * GCRA limit per criterion.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        long requestRange = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        long allowedNoOfRequests = args.length > 2 ? Long.parseLong(args[2]) : 100;
+        RateLimitCoordinator coordinator = new RateLimitCoordinator(new InetSocketAddress("127.0.0.1", port),
+                () -> RateLimitStrategy.gcra(requestRange, allowedNoOfRequests));
+        System.out.println("Rate limit coordinator listening on " + coordinator.address());
+        Thread.currentThread().join();
+    }
+}
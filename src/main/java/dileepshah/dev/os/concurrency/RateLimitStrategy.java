@@ -0,0 +1,94 @@
+package dileepshah.dev.os.concurrency;
+
+/**
+ * The algorithm behind a rate limiter: decides whether a request arriving now is admitted. Implementations are thread
+ * safe and keep the state of one limited resource, so a limiter that limits many keys creates one per key.
+ * <p>
+ * The implementations trade accuracy for cost:
+ * <ul>
+ *     <li>{@link #slidingLog(long, long)}: exact, at most {@code allowedNoOfRequests} in any window, O(limit) memory
+ *     and a lock.</li>
+ *     <li>{@link #slidingWindowCounter(long, long)}: approximate, weights the previous fixed window by how much of it
+ *     still overlaps the sliding one; two counters and a short lock.</li>
+ *     <li>{@link #gcra(long, long, long)}: smooth rate with a configurable burst, one timestamp and a CAS.</li>
+ *     <li>{@link TokenBucketRateLimiter}: same admissions as GCRA expressed as tokens, one packed word and a CAS.</li>
+ * </ul>
+ * All of them measure time with {@link System#nanoTime()}.
+ * <p>
+ * Permits can also be reserved ahead of time with {@link #reserve(int, long)}: the strategy books them at the earliest
+ * time the limit allows and tells the caller how long to wait for it. Later reservations and requests queue behind
+ * earlier ones, so waiters are served in FIFO order and each can sleep exactly until its turn instead of polling.
+ */
+public interface RateLimitStrategy {
+
+    /**
+     * Admits the request if the limit allows it right now and no reservation is queued ahead of it, counting it
+     * against the limit.
+     *
+     * @return true if the request is allowed, false otherwise.
+     */
+    default boolean tryAcquire() {
+        return reserve(1, 0) == 0;
+    }
+
+    /**
+     * Reserves the permits at the earliest time the limit allows, after every reservation made before, unless that is
+     * more than {@code maxWaitNanos} away. Reserved permits count against the limit from then on, whether or not the
+     * caller ends up using them.
+     *
+     * @param permits      The number of permits, at most what the limit admits at once.
+     * @param maxWaitNanos The longest the caller is willing to wait, 0 to only take permits available now.
+     * @return the nanoseconds until the permits may be used, or -1 if they would take longer and weren't reserved
+     * @throws IllegalArgumentException if the permits are not positive or exceed what the limit admits at once
+     * @throws IllegalStateException    if the permits would be available in time, but more reservations are queued
+     *                                  than the strategy can keep track of
+     */
+    long reserve(int permits, long maxWaitNanos);
+
+    /**
+     * Gives back permits of the latest reservation that won't be used after all, e.g. because another limit the
+     * request is subject to turned it down. The limit may recover the permits a little later than it would have
+     * without the reservation, never sooner.
+     *
+     * @param permits The number of permits reserved and not used.
+     */
+    void refund(int permits);
+
+    /**
+     * @return how long after its last use, or its last reservation becoming due, the strategy is back at its full
+     * capacity. A criterion idle for that long can be forgotten and start over without being admitted more.
+     */
+    long recoveryNanos();
+
+    /**
+     * @param requestRange        The time range (in milliseconds) within which a certain number of requests are allowed.
+     * @param allowedNoOfRequests The maximum number of requests allowed within any such range.
+     */
+    static RateLimitStrategy slidingLog(long requestRange, long allowedNoOfRequests) {
+        return new SlidingLogRateLimitStrategy(requestRange, allowedNoOfRequests);
+    }
+
+    /**
+     * @param requestRange        The length (in milliseconds) of the window.
+     * @param allowedNoOfRequests The maximum number of requests allowed within the window.
+     */
+    static RateLimitStrategy slidingWindowCounter(long requestRange, long allowedNoOfRequests) {
+        return new SlidingWindowCounterRateLimitStrategy(requestRange, allowedNoOfRequests);
+    }
+
+    /**
+     * @param requestRange        The time range (in milliseconds) over which the allowed requests are spread.
+     * @param allowedNoOfRequests The number of requests allowed per range.
+     * @param burstCapacity       The most requests admitted back to back after an idle period.
+     */
+    static RateLimitStrategy gcra(long requestRange, long allowedNoOfRequests, long burstCapacity) {
+        return new GcraRateLimitStrategy(requestRange, allowedNoOfRequests, burstCapacity);
+    }
+
+    /**
+     * GCRA that allows bursts of up to {@code allowedNoOfRequests}.
+     */
+    static RateLimitStrategy gcra(long requestRange, long allowedNoOfRequests) {
+        return gcra(requestRange, allowedNoOfRequests, allowedNoOfRequests);
+    }
+}
@@ -0,0 +1,376 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Segmented concurrent KV store whose segments split online, without stopping readers or writers.
+ * <p>
+ * Segments are found through an extendible hashing directory: the top {@code globalDepth} bits of the key hash index
+ * the directory, and a segment with local depth d owns every slot sharing its top d bits. Any single segment can
+ * therefore be split on its own: a sibling takes over the half of its slots whose next hash bit is 1 (the directory is
+ * doubled first when the segment already uses every directory bit). A segment is split when it grows past
+ * {@code maxSegmentSize} entries or when its lock has been found contended too often, up to {@code maxSegments}
+ * segments, which by default scales with the number of cores.
+ * <p>
+ * Entries are migrated to the sibling incrementally. The keys to move are listed when the split is published, and
+ * every later operation moves a small batch. Until the migration finishes the sibling remembers its source segment:
+ * operations on sibling keys lock the source and then the sibling, look in both, and write only to the sibling. Every
+ * operation re-validates its route after locking and retries if a split re-routed its key in the meantime.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ */
+public class ReshardingConcurrentKVStore<K, V> {
+    private static final int DEFAULT_SEGMENTS = 16;
+    private static final int DEFAULT_MAX_SEGMENT_SIZE = 8192;
+    private static final int MAX_GLOBAL_DEPTH = 16;
+    private static final int MIGRATION_BATCH = 64;
+    private static final int CONTENTION_SPLIT_THRESHOLD = 1024;
+
+    private final int maxSegmentSize;
+    private final int maxSegments;
+    private final Lock resizeLock;
+    private volatile Directory<K, V> directory;
+    // The sibling whose entries are still being migrated, at most one at a time
+    private volatile Segment<K, V> migrating;
+
+    /**
+     * @param initialSegments the initial number of segments, rounded up to a power of two
+     * @param maxSegmentSize  the number of entries after which a segment is split
+     * @param maxSegments     the number of segments after which no more splits happen
+     */
+    public ReshardingConcurrentKVStore(int initialSegments, int maxSegmentSize, int maxSegments) {
+        if (initialSegments <= 0 || maxSegmentSize <= 0 || maxSegments < initialSegments) {
+            throw new IllegalArgumentException("Invalid segment configuration");
+        }
+        int segments = Math.min(KVHashing.tableSizeFor(initialSegments), 1 << MAX_GLOBAL_DEPTH);
+        int depth = Integer.numberOfTrailingZeros(segments);
+        @SuppressWarnings("unchecked")
+        Segment<K, V>[] slots = (Segment<K, V>[]) new Segment<?, ?>[segments];
+        for (int i = 0; i < segments; i++) {
+            slots[i] = new Segment<>(depth);
+        }
+        this.directory = new Directory<>(slots, depth, segments);
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxSegments = maxSegments;
+        this.resizeLock = new ReentrantLock();
+    }
+
+    public ReshardingConcurrentKVStore() {
+        this(DEFAULT_SEGMENTS, DEFAULT_MAX_SEGMENT_SIZE, 16 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public V get(K key) {
+        V value = getOrNull(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
+        }
+        return value;
+    }
+
+    public V getOrNull(K key) {
+        return apply(key, (map, sourceMap) -> {
+            V value = map.get(key);
+            return value != null || sourceMap == null ? value : sourceMap.get(key);
+        });
+    }
+
+    public boolean containsKey(K key) {
+        return key != null && getOrNull(key) != null;
+    }
+
+    /**
+     * @return the previous value mapped to the key, or null if there was none
+     */
+    public V put(K key, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        return apply(key, (map, sourceMap) -> {
+            V previous = map.put(key, value);
+            if (sourceMap != null) {
+                V migratingValue = sourceMap.remove(key);
+                return previous != null ? previous : migratingValue;
+            }
+            return previous;
+        });
+    }
+
+    /**
+     * @throws IllegalArgumentException if the key is null or doesn't exist
+     */
+    public V delete(K key) {
+        V removed = apply(key, (map, sourceMap) -> {
+            V value = map.remove(key);
+            if (sourceMap != null) {
+                V migratingValue = sourceMap.remove(key);
+                return value != null ? value : migratingValue;
+            }
+            return value;
+        });
+        if (removed == null) {
+            throw new IllegalArgumentException("Invalid key or it doesn't exist");
+        }
+        return removed;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment : distinctSegments()) {
+            segment.lock.lock();
+            try {
+                size += segment.map.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    public int segmentCount() {
+        return this.directory.segmentCount;
+    }
+
+    /**
+     * Finds the segment for the key, locks it (and its source while it is being migrated into), re-validates the
+     * route and runs the operation. Afterwards the operation does a bounded share of any pending migration and splits
+     * the segment if it became too large or too contended.
+     */
+    private V apply(K key, SegmentOp<K, V> op) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        int hash = KVHashing.mix32(key.hashCode());
+        V result;
+        Segment<K, V> segment;
+        for (;;) {
+            segment = this.directory.segmentFor(hash);
+            Segment<K, V> source = segment.source;
+            if (source != null) {
+                source.lockTracked();
+            }
+            segment.lockTracked();
+            try {
+                if (this.directory.segmentFor(hash) == segment && segment.source == source) {
+                    result = op.apply(segment.map, source == null ? null : source.map);
+                    break;
+                }
+            } finally {
+                segment.lock.unlock();
+                if (source != null) {
+                    source.lock.unlock();
+                }
+            }
+        }
+
+        if (this.migrating != null) {
+            migrateStep();
+        } else if (segment.needsSplit(this.maxSegmentSize)) {
+            split(segment);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the next batch of listed keys from the source to the migrating sibling, if no other thread is doing so.
+     */
+    private void migrateStep() {
+        Segment<K, V> sibling = this.migrating;
+        if (sibling == null) {
+            return;
+        }
+        Segment<K, V> source = sibling.source;
+        if (source == null || !source.lock.tryLock()) {
+            return;
+        }
+        try {
+            if (!sibling.lock.tryLock()) {
+                return;
+            }
+            try {
+                if (sibling.source != source) {
+                    return;
+                }
+                int end = Math.min(sibling.pendingKeys.size(), sibling.migrationCursor + MIGRATION_BATCH);
+                for (int i = sibling.migrationCursor; i < end; i++) {
+                    K key = sibling.pendingKeys.get(i);
+                    V value = source.map.remove(key);
+                    if (value != null) {
+                        sibling.map.putIfAbsent(key, value);
+                    }
+                }
+                sibling.migrationCursor = end;
+                if (end == sibling.pendingKeys.size()) {
+                    sibling.pendingKeys = null;
+                    sibling.source = null;
+                    this.migrating = null;
+                }
+            } finally {
+                sibling.lock.unlock();
+            }
+        } finally {
+            source.lock.unlock();
+        }
+    }
+
+    /**
+     * Splits the segment into itself and a new sibling. The split is published while holding the segment lock, so
+     * every operation that routed to it before is either finished or will notice the new route and retry.
+     */
+    private void split(Segment<K, V> segment) {
+        if (!this.resizeLock.tryLock()) {
+            return;
+        }
+        try {
+            Directory<K, V> current = this.directory;
+            if (this.migrating != null || current.segmentCount >= this.maxSegments
+                    || segment.localDepth >= MAX_GLOBAL_DEPTH || !segment.needsSplit(this.maxSegmentSize)) {
+                return;
+            }
+            segment.lock.lock();
+            try {
+                Directory<K, V> doubled = segment.localDepth == current.globalDepth ? current.doubled() : current;
+                int depth = segment.localDepth;
+                Segment<K, V> sibling = new Segment<>(depth + 1);
+                Segment<K, V>[] slots = doubled.slots.clone();
+                for (int i = 0; i < slots.length; i++) {
+                    if (slots[i] == segment && ((i >>> (doubled.globalDepth - 1 - depth)) & 1) == 1) {
+                        slots[i] = sibling;
+                    }
+                }
+                List<K> pendingKeys = new ArrayList<>();
+                for (K key : segment.map.keySet()) {
+                    if (((KVHashing.mix32(key.hashCode()) >>> (31 - depth)) & 1) == 1) {
+                        pendingKeys.add(key);
+                    }
+                }
+                sibling.pendingKeys = pendingKeys;
+                sibling.source = segment;
+                segment.localDepth = depth + 1;
+                segment.contendedAcquires = 0;
+                this.directory = new Directory<>(slots, doubled.globalDepth, current.segmentCount + 1);
+                this.migrating = sibling;
+            } finally {
+                segment.lock.unlock();
+            }
+        } finally {
+            this.resizeLock.unlock();
+        }
+    }
+
+    private List<Segment<K, V>> distinctSegments() {
+        List<Segment<K, V>> segments = new ArrayList<>();
+        Segment<K, V> previous = null;
+        for (Segment<K, V> segment : this.directory.slots) {
+            // A segment owns a contiguous run of slots, so comparing with the previous slot is enough.
+            if (segment != previous) {
+                segments.add(segment);
+                previous = segment;
+            }
+        }
+        return segments;
+    }
+
+    private interface SegmentOp<K, V> {
+        V apply(Map<K, V> map, Map<K, V> sourceMap);
+    }
+
+    /**
+     * Immutable view of the directory. A new one is published on every split.
+     */
+    private static final class Directory<K, V> {
+        private final Segment<K, V>[] slots;
+        private final int globalDepth;
+        private final int segmentCount;
+
+        Directory(Segment<K, V>[] slots, int globalDepth, int segmentCount) {
+            this.slots = slots;
+            this.globalDepth = globalDepth;
+            this.segmentCount = segmentCount;
+        }
+
+        Segment<K, V> segmentFor(int hash) {
+            return this.globalDepth == 0 ? this.slots[0] : this.slots[hash >>> (32 - this.globalDepth)];
+        }
+
+        Directory<K, V> doubled() {
+            @SuppressWarnings("unchecked")
+            Segment<K, V>[] doubledSlots = (Segment<K, V>[]) new Segment<?, ?>[this.slots.length << 1];
+            for (int i = 0; i < this.slots.length; i++) {
+                doubledSlots[i << 1] = this.slots[i];
+                doubledSlots[(i << 1) + 1] = this.slots[i];
+            }
+            return new Directory<>(doubledSlots, this.globalDepth + 1, this.segmentCount);
+        }
+    }
+
+    private static final class Segment<K, V> {
+        private final Lock lock = new ReentrantLock();
+        private final Map<K, V> map = new HashMap<>();
+        // Guarded by the resize lock
+        private int localDepth;
+        // Set while entries are still being migrated into this segment from its source
+        private volatile Segment<K, V> source;
+        // Guarded by the source and this segment's lock
+        private List<K> pendingKeys;
+        private int migrationCursor;
+        // Racy statistic, only used as a split heuristic
+        private int contendedAcquires;
+
+        Segment(int localDepth) {
+            this.localDepth = localDepth;
+        }
+
+        void lockTracked() {
+            if (!this.lock.tryLock()) {
+                this.contendedAcquires++;
+                this.lock.lock();
+            }
+        }
+
+        boolean needsSplit(int maxSegmentSize) {
+            return this.map.size() > maxSegmentSize || this.contendedAcquires > CONTENTION_SPLIT_THRESHOLD;
+        }
+    }
+
+    public static void main(String[] args) {
+        ReshardingConcurrentKVStore<Integer, Integer> store = new ReshardingConcurrentKVStore<>(2, 1_000, 64);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            final int thread = t;
+            executor.execute(() -> {
+                for (int i = 0; i < 5_000; i++) {
+                    int key = thread * 5_000 + i;
+                    store.put(key, i);
+                    if (store.getOrNull(key) == null) {
+                        System.out.println("Lost key " + key);
+                    }
+                }
+            });
+        }
+
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(8000, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+        }
+
+        System.out.println("Entries: " + store.size() + " (expected 40000), segments grew from 2 to "
+                + store.segmentCount());
+    }
+}
@@ -0,0 +1,574 @@
+package dileepshah.dev.os.concurrency;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking server that speaks a subset of the Redis protocol (RESP) over an {@link ImprovedSimpleConcurrentKVStore}:
+ * {@code GET}, {@code SET}, {@code DEL}, {@code MGET} and {@code INCR}, plus {@code PING} and empty answers to the
+ * {@code CONFIG} and {@code COMMAND} probes load tools send first. Both RESP arrays and inline commands are accepted.
+ * <p>
+ * An acceptor thread hands new connections round robin to one selector event loop per core, and a connection stays
+ * on its loop for life, so connections cost a buffer rather than a thread. Each read executes every complete command
+ * in the buffer and answers them all with one write, which is what makes pipelining pay off.
+ * <p>
+ * Every loop owns a pool of direct buffers. Responses are encoded straight into pooled buffers and sent with a
+ * gathering write, so the JDK never copies them into a temporary direct buffer. Buffers go back to the pool as soon as
+ * they are drained, so idle connections hold none.
+ */
+public final class RespKVServer implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final int MAX_COMMAND = 64 << 20;
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PONG = "+PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL_BULK = "$-1\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY_ARRAY = "*0\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final ImprovedSimpleConcurrentKVStore<ByteBuffer, byte[]> store;
+    private final ServerSocketChannel server;
+    private final EventLoop[] loops;
+    private final Thread acceptor;
+    private volatile boolean running;
+
+    // Final, so the event loops and the acceptor see a fully built server even though they start in here
+    @SuppressWarnings("this-escape")
+    public RespKVServer(InetSocketAddress bindAddress, int eventLoops, int numberOfSegments) throws IOException {
+        if (eventLoops <= 0) {
+            throw new IllegalArgumentException("Need at least one event loop");
+        }
+        this.store = new ImprovedSimpleConcurrentKVStore<>(numberOfSegments);
+        this.server = ServerSocketChannel.open();
+        this.server.bind(bindAddress);
+        this.running = true;
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            this.loops[i] = new EventLoop(i);
+        }
+        this.acceptor = new Thread(this::acceptLoop, "resp-acceptor");
+        this.acceptor.start();
+    }
+
+    /**
+     * Runs one event loop per available processor.
+     */
+    public RespKVServer(InetSocketAddress bindAddress) throws IOException {
+        this(bindAddress, Runtime.getRuntime().availableProcessors(), 16);
+    }
+
+    public InetSocketAddress address() {
+        try {
+            return (InetSocketAddress) this.server.getLocalAddress();
+        } catch (IOException e) {
+            throw new IllegalStateException("Server is closed", e);
+        }
+    }
+
+    /**
+     * @return the store the server serves, for embedding it next to in-process users
+     */
+    public ImprovedSimpleConcurrentKVStore<ByteBuffer, byte[]> store() {
+        return this.store;
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (this.running) {
+            try {
+                SocketChannel channel = this.server.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                this.loops[next].adopt(channel);
+                next = (next + 1) % this.loops.length;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (this.running) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.running = false;
+        this.server.close();
+        try {
+            this.acceptor.join();
+            for (EventLoop loop : this.loops) {
+                loop.selector.wakeup();
+                loop.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Thrown when a client sends something that isn't RESP; the connection is dropped.
+     */
+    private static final class ProtocolException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ProtocolException(String message) {
+            super(message);
+        }
+    }
+
+    private final class EventLoop {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> adopted;
+        // Only touched by this loop's thread, so it needs no synchronisation
+        private final ArrayDeque<ByteBuffer> pool;
+        private final Thread thread;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.adopted = new ConcurrentLinkedQueue<>();
+            this.pool = new ArrayDeque<>();
+            this.thread = new Thread(this::run, "resp-loop-" + index);
+            this.thread.start();
+        }
+
+        void adopt(SocketChannel channel) {
+            this.adopted.add(channel);
+            this.selector.wakeup();
+        }
+
+        private void run() {
+            while (running) {
+                try {
+                    this.selector.select();
+                    for (SocketChannel channel; (channel = this.adopted.poll()) != null; ) {
+                        channel.register(this.selector, SelectionKey.OP_READ, new Connection());
+                    }
+                    Iterator<SelectionKey> selected = this.selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        try {
+                            if (key.isWritable()) {
+                                flush(key);
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(key);
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            closeConnection(key);
+                        }
+                    }
+                } catch (IOException e) {
+                    if (running) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            for (SelectionKey key : this.selector.keys()) {
+                closeConnection(key);
+            }
+            try {
+                this.selector.close();
+            } catch (IOException ignored) {
+                // Shutting down anyway
+            }
+        }
+
+        private void read(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            Connection connection = (Connection) key.attachment();
+            if (connection.in == null) {
+                connection.in = acquire();
+            }
+            if (channel.read(connection.in) < 0) {
+                closeConnection(key);
+                return;
+            }
+            ByteBuffer in = connection.in;
+            in.flip();
+            while (in.hasRemaining()) {
+                int start = in.position();
+                List<byte[]> command = parse(in);
+                if (command == null) {
+                    in.position(start);
+                    break;
+                }
+                if (!command.isEmpty()) {
+                    execute(command, connection);
+                }
+            }
+            if (!in.hasRemaining()) {
+                release(in);
+                connection.in = null;
+            } else {
+                in.compact();
+                if (!in.hasRemaining()) {
+                    // One command larger than the buffer: move it to a bigger one outside the pool
+                    if (in.capacity() >= MAX_COMMAND) {
+                        throw new ProtocolException("Command too large");
+                    }
+                    ByteBuffer larger = ByteBuffer.allocateDirect(in.capacity() * 2);
+                    in.flip();
+                    larger.put(in);
+                    release(in);
+                    connection.in = larger;
+                }
+            }
+            flush(key);
+        }
+
+        private void execute(List<byte[]> command, Connection connection) {
+            String name = new String(command.get(0), StandardCharsets.US_ASCII).toUpperCase();
+            int arguments = command.size() - 1;
+            switch (name) {
+                case "GET":
+                    if (arguments != 1) {
+                        wrongArguments(connection, name);
+                        return;
+                    }
+                    writeBulk(connection, store.getOrNull(ByteBuffer.wrap(command.get(1))));
+                    return;
+                case "SET":
+                    if (arguments != 2) {
+                        wrongArguments(connection, name);
+                        return;
+                    }
+                    store.put(ByteBuffer.wrap(command.get(1)), command.get(2));
+                    write(connection, OK);
+                    return;
+                case "DEL": {
+                    if (arguments < 1) {
+                        wrongArguments(connection, name);
+                        return;
+                    }
+                    long deleted = 0;
+                    for (int i = 1; i < command.size(); i++) {
+                        byte[][] removed = new byte[1][];
+                        store.compute(ByteBuffer.wrap(command.get(i)), (k, current) -> {
+                            removed[0] = current;
+                            return null;
+                        });
+                        if (removed[0] != null) {
+                            deleted++;
+                        }
+                    }
+                    writeInteger(connection, deleted);
+                    return;
+                }
+                case "MGET": {
+                    if (arguments < 1) {
+                        wrongArguments(connection, name);
+                        return;
+                    }
+                    List<ByteBuffer> keys = new ArrayList<>(arguments);
+                    for (int i = 1; i < command.size(); i++) {
+                        keys.add(ByteBuffer.wrap(command.get(i)));
+                    }
+                    List<byte[]> values = store.multiGet(keys);
+                    writeHeader(connection, '*', values.size());
+                    for (byte[] value : values) {
+                        writeBulk(connection, value);
+                    }
+                    return;
+                }
+                case "INCR":
+                    if (arguments != 1) {
+                        wrongArguments(connection, name);
+                        return;
+                    }
+                    incr(connection, command.get(1));
+                    return;
+                case "PING":
+                    if (arguments == 0) {
+                        write(connection, PONG);
+                    } else {
+                        writeBulk(connection, command.get(1));
+                    }
+                    return;
+                case "CONFIG":
+                case "COMMAND":
+                    write(connection, EMPTY_ARRAY);
+                    return;
+                default:
+                    writeError(connection, "ERR unknown command '" + name + "'");
+            }
+        }
+
+        private void incr(Connection connection, byte[] key) {
+            long[] result = new long[1];
+            try {
+                store.compute(ByteBuffer.wrap(key), (k, current) -> {
+                    long value = current == null ? 0 : Long.parseLong(new String(current, StandardCharsets.US_ASCII));
+                    result[0] = Math.addExact(value, 1);
+                    return Long.toString(result[0]).getBytes(StandardCharsets.US_ASCII);
+                });
+            } catch (NumberFormatException | ArithmeticException e) {
+                writeError(connection, "ERR value is not an integer or out of range");
+                return;
+            }
+            writeInteger(connection, result[0]);
+        }
+
+        private void wrongArguments(Connection connection, String name) {
+            writeError(connection, "ERR wrong number of arguments for '" + name.toLowerCase() + "' command");
+        }
+
+        private void writeBulk(Connection connection, byte[] value) {
+            if (value == null) {
+                write(connection, NULL_BULK);
+                return;
+            }
+            writeHeader(connection, '$', value.length);
+            write(connection, value);
+            write(connection, CRLF);
+        }
+
+        private void writeInteger(Connection connection, long value) {
+            writeHeader(connection, ':', value);
+        }
+
+        private void writeError(Connection connection, String message) {
+            write(connection, ("-" + message + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void writeHeader(Connection connection, char type, long number) {
+            write(connection, (type + Long.toString(number) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Appends to the connection's pending output, taking more pooled buffers as the tail fills up.
+         */
+        private void write(Connection connection, byte[] bytes) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ByteBuffer tail = connection.out.peekLast();
+                if (tail == null || !tail.hasRemaining()) {
+                    tail = acquire();
+                    connection.out.addLast(tail);
+                }
+                int length = Math.min(tail.remaining(), bytes.length - offset);
+                tail.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        private void flush(SelectionKey key) throws IOException {
+            Connection connection = (Connection) key.attachment();
+            if (!connection.out.isEmpty()) {
+                ByteBuffer[] pending = connection.out.toArray(new ByteBuffer[0]);
+                for (ByteBuffer buffer : pending) {
+                    buffer.flip();
+                }
+                ((SocketChannel) key.channel()).write(pending);
+                for (ByteBuffer buffer : pending) {
+                    if (buffer.hasRemaining()) {
+                        buffer.compact();
+                    } else {
+                        connection.out.removeFirst();
+                        release(buffer);
+                    }
+                }
+            }
+            // Stop reading while responses are backed up, so a client that never reads can't grow the output forever
+            key.interestOps(connection.out.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+        }
+
+        private void closeConnection(SelectionKey key) {
+            Connection connection = (Connection) key.attachment();
+            key.cancel();
+            try {
+                key.channel().close();
+            } catch (IOException ignored) {
+                // Already closing
+            }
+            if (connection != null) {
+                if (connection.in != null) {
+                    release(connection.in);
+                    connection.in = null;
+                }
+                for (ByteBuffer buffer; (buffer = connection.out.pollFirst()) != null; ) {
+                    release(buffer);
+                }
+            }
+        }
+
+        private ByteBuffer acquire() {
+            ByteBuffer buffer = this.pool.pollFirst();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        private void release(ByteBuffer buffer) {
+            // Oversized read buffers are left to the garbage collector
+            if (buffer.capacity() == BUFFER_SIZE && this.pool.size() < MAX_POOLED_BUFFERS) {
+                this.pool.addFirst(buffer.clear());
+            }
+        }
+    }
+
+    private static final class Connection {
+        private ByteBuffer in;
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<>();
+    }
+
+    /**
+     * Parses one command from the buffer.
+     *
+     * @return the command name and arguments, empty for a blank inline line, or null if the command isn't complete yet
+     */
+    private static List<byte[]> parse(ByteBuffer in) throws ProtocolException {
+        if (in.get(in.position()) != '*') {
+            // Inline command: one line of space separated words
+            int end = lineEnd(in);
+            if (end < 0) {
+                return null;
+            }
+            byte[] line = new byte[end - in.position()];
+            in.get(line);
+            in.position(end + 2);
+            List<byte[]> words = new ArrayList<>();
+            for (String word : new String(line, StandardCharsets.US_ASCII).trim().split(" +")) {
+                if (!word.isEmpty()) {
+                    words.add(word.getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+            return words;
+        }
+        in.get();
+        long count = readNumber(in);
+        if (count == Long.MIN_VALUE) {
+            return null;
+        }
+        if (count < 0 || count > 1024 * 1024) {
+            throw new ProtocolException("Bad array length");
+        }
+        List<byte[]> parts = new ArrayList<>((int) count);
+        for (int i = 0; i < count; i++) {
+            if (!in.hasRemaining()) {
+                return null;
+            }
+            if (in.get() != '$') {
+                throw new ProtocolException("Expected a bulk string");
+            }
+            long length = readNumber(in);
+            if (length == Long.MIN_VALUE) {
+                return null;
+            }
+            if (length < 0 || length > MAX_COMMAND) {
+                throw new ProtocolException("Bad bulk length");
+            }
+            if (in.remaining() < length + 2) {
+                return null;
+            }
+            byte[] part = new byte[(int) length];
+            in.get(part);
+            in.position(in.position() + 2);
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    /**
+     * Reads a decimal number terminated by CRLF.
+     *
+     * @return the number, or {@link Long#MIN_VALUE} if the line isn't complete yet
+     */
+    private static long readNumber(ByteBuffer in) throws ProtocolException {
+        int end = lineEnd(in);
+        if (end < 0) {
+            return Long.MIN_VALUE;
+        }
+        byte[] digits = new byte[end - in.position()];
+        in.get(digits);
+        in.position(end + 2);
+        try {
+            return Long.parseLong(new String(digits, StandardCharsets.US_ASCII));
+        } catch (NumberFormatException e) {
+            throw new ProtocolException("Bad number");
+        }
+    }
+
+    private static int lineEnd(ByteBuffer in) {
+        for (int i = in.position(); i < in.limit() - 1; i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 0;
+        RespKVServer server = new RespKVServer(new InetSocketAddress("127.0.0.1", port));
+        System.out.println("RESP server listening on " + server.address());
+        if (args.length > 0) {
+            // Standalone mode for redis-cli or redis-benchmark
+            server.acceptor.join();
+            return;
+        }
+
+        // Each client pipelines a burst of INCRs and reads all the answers afterwards
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int t = 0; t < 4; t++) {
+            executor.execute(() -> {
+                try (Socket socket = new Socket("127.0.0.1", server.address().getPort())) {
+                    OutputStream out = socket.getOutputStream();
+                    StringBuilder burst = new StringBuilder();
+                    for (int i = 0; i < 1_000; i++) {
+                        burst.append("*2\r\n$4\r\nINCR\r\n$7\r\ncounter\r\n");
+                    }
+                    out.write(burst.toString().getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    InputStream in = socket.getInputStream();
+                    int lines = 0;
+                    while (lines < 1_000) {
+                        int b = in.read();
+                        if (b < 0) {
+                            break;
+                        }
+                        if (b == '\n') {
+                            lines++;
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(30, TimeUnit.SECONDS);
+
+        try (Socket socket = new Socket("127.0.0.1", server.address().getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write("SET greeting hello\r\nMGET greeting counter missing\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            byte[] response = new byte[256];
+            int read = 0;
+            // +OK, then the array header and three bulk replies
+            while (new String(response, 0, read, StandardCharsets.US_ASCII).split("\r\n", -1).length < 8) {
+                read += socket.getInputStream().read(response, read, response.length - read);
+            }
+            System.out.print(new String(response, 0, read, StandardCharsets.US_ASCII));
+        }
+        server.close();
+    }
+}
@@ -1,39 +1,121 @@
 package dileepshah.dev.os.concurrency;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Simple concurrent KV to be thread safe and allow multiple threads access to the store.
+ * <p>
+ * Writes run under the store lock, which keeps the change log and the miss filter in step with the entries. The entries
+ * are kept in a {@link ConcurrentHashMap}, so single-key lookups and iteration skip the lock: a lookup sees each write
+ * whole, and iterators are weakly consistent and never hold up writers. Only {@link #multiGet(List)} takes the lock to
+ * read, so it sees all of its keys as of one moment.
+ * <p>
+ * With a change log, every mutation is also appended to a {@link KVChangeLog} while the lock is still held, so the
+ * change stream has exactly the order of the writes.
+ * <p>
+ * With a miss filter, a {@link CountingBloomFilter} of the keys is kept up to date under the lock and checked before
+ * it: lookups of keys that were never written, or have been deleted, usually return without locking or probing. The
+ * filter is rebuilt at twice the size from the current keys once it holds more keys than it was sized for.
+ * <p>
+ * Gets, puts, hits, misses and waits for the lock are counted in {@link LongAdder}s, which spread contended updates
+ * over striped cells, so counting doesn't become a point of contention itself. See {@link #stats()}.
  */
 public class SimpleConcurrentKVStore<K, V> {
     private Map<K, V> store;
     private Lock lock;
+    private final KVChangeLog<K, V> changeLog;
+    // Replaced under the lock when it is rebuilt, read without it
+    private volatile CountingBloomFilter missFilter;
+    private final LongAdder gets = new LongAdder();
+    private final LongAdder puts = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder lockWaits = new LongAdder();
 
     public SimpleConcurrentKVStore() {
-        this.store = new HashMap<>();
+        this(0, 0);
+    }
+
+    /**
+     * @param changeLogCapacity how many of the latest mutations the change log keeps
+     */
+    public SimpleConcurrentKVStore(int changeLogCapacity) {
+        this(changeLogCapacity, 0);
+    }
+
+    /**
+     * @param changeLogCapacity    how many of the latest mutations the change log keeps, 0 for no change log
+     * @param missFilterEntries    how many keys the miss filter is sized for at first, 0 for no miss filter
+     */
+    public SimpleConcurrentKVStore(int changeLogCapacity, int missFilterEntries) {
+        if (changeLogCapacity < 0 || missFilterEntries < 0) {
+            throw new IllegalArgumentException("Invalid change log or miss filter size");
+        }
+        this.store = new ConcurrentHashMap<>();
         this.lock = new ReentrantLock();
+        this.changeLog = changeLogCapacity > 0 ? new KVChangeLog<>(changeLogCapacity) : null;
+        this.missFilter = missFilterEntries > 0 ? new CountingBloomFilter(missFilterEntries) : null;
     }
 
     public V get(K key) {
-        lock.lock();
-        try {
-            if (key == null || !store.containsKey(key)) {
-                throw new IllegalArgumentException("Invalid key or key doesn't exist!");
-            }
-            return store.get(key);
-        } finally {
-            lock.unlock();
+        gets.increment();
+        V value = key == null || definitelyAbsent(key) ? null : store.get(key);
+        if (value == null) {
+            misses.increment();
+            throw new IllegalArgumentException("Invalid key or key doesn't exist!");
         }
+        hits.increment();
+        return value;
     }
 
-    public void put(K key, V value) {
-        lock.lock();
+    /**
+     * Looks up the key without throwing on a miss.
+     *
+     * @return the value mapped to the key, or null if it doesn't exist
+     */
+    public V getOrNull(K key) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        gets.increment();
+        V value = definitelyAbsent(key) ? null : store.get(key);
+        (value == null ? misses : hits).increment();
+        return value;
+    }
+
+    public V getOrDefault(K key, V defaultValue) {
+        V value = getOrNull(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public Optional<V> find(K key) {
+        return Optional.ofNullable(getOrNull(key));
+    }
+
+    public boolean containsKey(K key) {
+        return getOrNull(key) != null;
+    }
+
+    /**
+     * @return the previous value mapped to the key, or null if there was none
+     */
+    public V put(K key, V value) {
         if (key == null) {
             throw new IllegalArgumentException("Invalid key");
         }
@@ -41,25 +123,396 @@ public class SimpleConcurrentKVStore<K, V> {
             throw new IllegalArgumentException("Invalid value");
         }
 
+        acquireLock();
         try {
-            store.put(key, value);
+            puts.increment();
+            beforeWrite(key);
+            V previous = store.put(key, value);
+            record(KVChangeLog.Type.PUT, key, value);
+            return previous;
         } finally {
             lock.unlock();
         }
     }
 
     public V delete(K key) {
-        lock.lock();
+        acquireLock();
         try {
             if (key == null || !store.containsKey(key)) {
                 throw new IllegalArgumentException("Invalid key or it doesn't exist");
             }
-            return store.remove(key);
+            V value = store.remove(key);
+            afterWrite(key);
+            record(KVChangeLog.Type.DELETE, key, null);
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the current value if the key was already mapped (and is left untouched), otherwise null
+     */
+    public V putIfAbsent(K key, V value) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        acquireLock();
+        try {
+            puts.increment();
+            beforeWrite(key);
+            V current = store.putIfAbsent(key, value);
+            if (current == null) {
+                record(KVChangeLog.Type.PUT, key, value);
+            }
+            return current;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Maps the key to the value computed by the function if it isn't mapped yet. The function runs under the store
+     * lock, so it is called at most once per absent key and must not access this store.
+     *
+     * @return the current or computed value, or null if the function returned null
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        acquireLock();
+        try {
+            puts.increment();
+            V current = store.get(key);
+            if (current != null) {
+                return current;
+            }
+            beforeWrite(key);
+            V computed;
+            try {
+                computed = store.computeIfAbsent(key, mappingFunction);
+            } finally {
+                afterWrite(key);
+            }
+            if (computed != null) {
+                record(KVChangeLog.Type.COMPUTE, key, computed);
+            }
+            return computed;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Replaces the value of the key (null if absent) with the result of the function under the store lock. A null
+     * result removes the key.
+     *
+     * @return the new value, or null if the key was removed
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid key");
+        }
+        acquireLock();
+        try {
+            puts.increment();
+            V previous = store.get(key);
+            beforeWrite(key);
+            V computed;
+            try {
+                computed = store.compute(key, remappingFunction);
+            } finally {
+                afterWrite(key);
+            }
+            if (previous != null || computed != null) {
+                record(KVChangeLog.Type.COMPUTE, key, computed);
+            }
+            return computed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts the value if the key is absent, otherwise combines it with the current value under the store lock. A null
+     * result removes the key.
+     *
+     * @return the new value, or null if the key was removed
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (key == null || value == null) {
+            throw new IllegalArgumentException("Invalid key or value");
+        }
+        acquireLock();
+        try {
+            puts.increment();
+            beforeWrite(key);
+            V merged;
+            try {
+                merged = store.merge(key, value, remappingFunction);
+            } finally {
+                afterWrite(key);
+            }
+            record(KVChangeLog.Type.COMPUTE, key, merged);
+            return merged;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the key only if it is currently mapped to the given value (compared by identity).
+     *
+     * @return true if the entry was removed
+     */
+    public boolean remove(K key, V value) {
+        acquireLock();
+        try {
+            if (key == null || store.get(key) != value) {
+                return false;
+            }
+            store.remove(key);
+            afterWrite(key);
+            record(KVChangeLog.Type.DELETE, key, null);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Looks up all keys under a single lock acquisition, so no write lands between them.
+     *
+     * @return the values in the order of the keys, null for keys that don't exist
+     */
+    public List<V> multiGet(List<K> keys) {
+        checkKeys(keys);
+        List<V> values = new ArrayList<>(keys.size());
+        acquireLock();
+        try {
+            for (K key : keys) {
+                V value = definitelyAbsent(key) ? null : store.get(key);
+                (value == null ? misses : hits).increment();
+                values.add(value);
+            }
+            gets.add(keys.size());
+            return values;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Puts all key-value pairs under a single lock acquisition. Keys and values are paired by position.
+     *
+     * @return the previous values in the order of the keys, null where there was none
+     */
+    public List<V> multiPut(List<K> keys, List<V> values) {
+        if (keys.size() != values.size()) {
+            throw new IllegalArgumentException("Keys and values must have the same size");
+        }
+        for (int i = 0; i < keys.size(); i++) {
+            if (keys.get(i) == null || values.get(i) == null) {
+                throw new IllegalArgumentException("Invalid key or value");
+            }
+        }
+        List<V> previousValues = new ArrayList<>(keys.size());
+        acquireLock();
+        try {
+            for (int i = 0; i < keys.size(); i++) {
+                puts.increment();
+                beforeWrite(keys.get(i));
+                previousValues.add(store.put(keys.get(i), values.get(i)));
+                record(KVChangeLog.Type.PUT, keys.get(i), values.get(i));
+            }
+            return previousValues;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes all keys under a single lock acquisition.
+     *
+     * @return the removed values in the order of the keys, null for keys that didn't exist
+     */
+    public List<V> multiDelete(List<K> keys) {
+        checkKeys(keys);
+        List<V> values = new ArrayList<>(keys.size());
+        acquireLock();
+        try {
+            for (K key : keys) {
+                V value = store.remove(key);
+                if (value != null) {
+                    afterWrite(key);
+                    record(KVChangeLog.Type.DELETE, key, null);
+                }
+                values.add(value);
+            }
+            return values;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the store lock, counting the acquisitions that have to wait for another holder.
+     */
+    private void acquireLock() {
+        if (!lock.tryLock()) {
+            lockWaits.increment();
+            lock.lock();
+        }
+    }
+
+    /**
+     * @return the counters of this store so far
+     */
+    public KVStoreStats.Segment stats() {
+        return new KVStoreStats.Segment(gets.sum(), puts.sum(), hits.sum(), misses.sum(), lockWaits.sum(),
+                store.size());
+    }
+
+    private boolean definitelyAbsent(K key) {
+        CountingBloomFilter filter = missFilter;
+        return filter != null && key != null && !filter.mightContain(key);
+    }
+
+    /**
+     * Must be called under the store lock before a write that may insert the key. The key is added to the miss filter
+     * before it becomes visible, so a lookup that can see the key can also see it in the filter.
+     */
+    private void beforeWrite(K key) {
+        CountingBloomFilter filter = missFilter;
+        if (filter == null || store.containsKey(key)) {
+            return;
+        }
+        if (filter.isOverloaded()) {
+            filter = rebuildMissFilter(filter.capacity() * 2);
+        }
+        filter.add(key);
+    }
+
+    /**
+     * Must be called under the store lock after a write that may have removed the key.
+     */
+    private void afterWrite(K key) {
+        CountingBloomFilter filter = missFilter;
+        if (filter != null && !store.containsKey(key)) {
+            filter.remove(key);
+        }
+    }
+
+    /**
+     * Builds a fresh filter from the current keys, which also clears saturated counters and removals it couldn't undo.
+     * Lookups keep using the old one until the new one is complete; both cover every key, since writes wait for the
+     * lock.
+     */
+    private CountingBloomFilter rebuildMissFilter(int expectedEntries) {
+        CountingBloomFilter rebuilt = new CountingBloomFilter(expectedEntries);
+        for (K key : store.keySet()) {
+            rebuilt.add(key);
+        }
+        missFilter = rebuilt;
+        return rebuilt;
+    }
+
+    /**
+     * Rebuilds the miss filter for the current number of keys, e.g. after a bulk delete left it oversized. Does nothing
+     * without a miss filter.
+     */
+    public void compactMissFilter() {
+        acquireLock();
+        try {
+            if (missFilter != null) {
+                rebuildMissFilter(Math.max(store.size(), missFilter.capacity() / 2));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Must be called under the store lock, right after the mutation it describes.
+     */
+    private void record(KVChangeLog.Type type, K key, V value) {
+        if (changeLog != null) {
+            changeLog.append(type, key, value);
+        }
+    }
+
+    /**
+     * @return the change log of this store
+     * @throws IllegalStateException if the store was created without one
+     */
+    public KVChangeLog<K, V> changeLog() {
+        if (changeLog == null) {
+            throw new IllegalStateException("Change capture is not enabled for this store");
+        }
+        return changeLog;
+    }
+
+    private static <K> void checkKeys(List<K> keys) {
+        for (K key : keys) {
+            if (key == null) {
+                throw new IllegalArgumentException("Invalid key");
+            }
+        }
+    }
+
+    public int size() {
+        return store.size();
+    }
+
+    /**
+     * Splits along the hash table of the store. Weakly consistent: it doesn't take the store lock, never throws
+     * {@link java.util.ConcurrentModificationException} and sees each entry as it was at some point of the traversal.
+     * The entries are immutable copies.
+     */
+    public Spliterator<Map.Entry<K, V>> spliterator() {
+        return new EntrySpliterator<>(store.entrySet().spliterator());
+    }
+
+    /**
+     * @see #spliterator()
+     */
+    public Iterator<Map.Entry<K, V>> iterator() {
+        return Spliterators.iterator(spliterator());
+    }
+
+    /**
+     * Hands out immutable copies of the entries, so {@code setValue} can't write around the store lock.
+     */
+    private static final class EntrySpliterator<K, V> implements Spliterator<Map.Entry<K, V>> {
+        private final Spliterator<Map.Entry<K, V>> entries;
+
+        EntrySpliterator(Spliterator<Map.Entry<K, V>> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Map.Entry<K, V>> action) {
+            return entries.tryAdvance(entry -> action.accept(Map.entry(entry.getKey(), entry.getValue())));
+        }
+
+        @Override
+        public Spliterator<Map.Entry<K, V>> trySplit() {
+            Spliterator<Map.Entry<K, V>> prefix = entries.trySplit();
+            return prefix == null ? null : new EntrySpliterator<>(prefix);
+        }
+
+        @Override
+        public long estimateSize() {
+            return entries.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.CONCURRENT | Spliterator.DISTINCT | Spliterator.NONNULL;
+        }
+    }
+
     public static void main(String[] args) {
         final SimpleConcurrentKVStore<Integer, String> kvStore = new SimpleConcurrentKVStore<>();
 
@@ -1,34 +1,131 @@
 package dileepshah.dev.os.concurrency;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * SimpleCriterionBasedConcurrentRateLimiter is a rate limiter implementation that uses
  * a key-value store to manage rate limiters for different access criteria.
+ * <p>
+ * The limiters are kept in a {@link CasBinConcurrentKVStore}, so finding the limiter of a criterion never locks, and
+ * creating one only synchronises on its hash bin. Each criterion has its own {@link RateLimitStrategy}, so requests
+ * for different criteria never contend.
+ * <p>
+ * Criteria that haven't been seen for the idle timeout are evicted by a timing wheel: each limiter sits in the slot of
+ * the tick it would expire in, and requests sweep the slots that are due, at most one tick's worth at a time. Limiters
+ * used since they were scheduled move to their new slot instead, so a request only pays for a volatile read and, once
+ * per tick, a write of its access time. When more than {@code maxKeys} criteria are tracked, the limiters due to
+ * expire soonest are evicted early, which keeps memory bounded under a flood of new criteria at the cost of
+ * forgetting the history of the criteria seen least recently; limiters used since they were scheduled are moved on
+ * rather than evicted, so a flood doesn't reset the limits of the criteria that are actually busy.
+ * <p>
+ * Waiting for permits works as in {@link SimpleGenericConcurrentRateLimiter}, in FIFO order per criterion. A
+ * criterion counts as used until its last reservation is due, so it isn't evicted while anyone waits on it.
  *
  * @param <T> The type of access criteria used for the rate limiting.
  */
 public class SimpleCriterionBasedConcurrentRateLimiter<T> {
-    private final ImprovedSimpleConcurrentKVStore<T, SimpleGenericConcurrentRateLimiter<T>> kvStore;
-    private final Lock lock;
-    private final long allowedNoOfRequests;
-    private final long requestWindow;
+    private static final int WHEEL_SLOTS = 64;
+    private static final int DEFAULT_MAX_KEYS = 1 << 20;
+
+    private final CasBinConcurrentKVStore<T, Limiter<T>> limiters;
+    private final Function<? super T, ? extends RateLimitStrategy> strategyFactory;
+    private final long idleTimeoutNanos;
+    private final long tickNanos;
+    private final int maxKeys;
+    private final long epoch;
+    private final ConcurrentLinkedQueue<Limiter<T>>[] wheel;
+    // Held while sweeping; requests that find it taken leave the sweep to the holder
+    private final Lock sweepLock;
+    private final List<Limiter<T>> sweepBuffer;
+    private long sweptTick;
+    private volatile long nextSweep;
 
     /**
-     * Constructs a SimpleCriterionBasedConcurrentRateLimiter with a specified request window and allowed number of requests.
+     * Constructs a SimpleCriterionBasedConcurrentRateLimiter with a specified request window and allowed number of
+     * requests, limiting each criterion with the sliding log algorithm. Criteria idle for a whole window are evicted,
+     * which loses nothing: the log of such a criterion no longer holds any request of the window.
      *
      * @param requestWindow       The time range (in milliseconds) within which a certain number of requests are allowed.
      * @param allowedNoOfRequests The maximum number of requests allowed within the specified time range.
      */
     public SimpleCriterionBasedConcurrentRateLimiter(long requestWindow, long allowedNoOfRequests) {
-        this.kvStore = new ImprovedSimpleConcurrentKVStore<>();
-        this.lock =  new ReentrantLock();
-        this.requestWindow = requestWindow;
-        this.allowedNoOfRequests = allowedNoOfRequests;
+        this(() -> RateLimitStrategy.slidingLog(requestWindow, allowedNoOfRequests), requestWindow,
+                TimeUnit.MILLISECONDS, DEFAULT_MAX_KEYS);
+    }
+
+    /**
+     * Constructs a SimpleCriterionBasedConcurrentRateLimiter that limits each criterion with its own strategy, and
+     * evicts criteria once they have been idle long enough for the strategy to recover its full capacity, see
+     * {@link RateLimitStrategy#recoveryNanos()}. The factory is called once up front to find out how long that is.
+     *
+     * @param strategyFactory Creates the rate limiting algorithm for a criterion the first time it is seen, e.g.
+     *                        {@code () -> RateLimitStrategy.gcra(1000, 5)}.
+     */
+    public SimpleCriterionBasedConcurrentRateLimiter(Supplier<? extends RateLimitStrategy> strategyFactory) {
+        this(strategyFactory, recoveryNanos(strategyFactory), TimeUnit.NANOSECONDS, DEFAULT_MAX_KEYS);
+    }
+
+    private static long recoveryNanos(Supplier<? extends RateLimitStrategy> strategyFactory) {
+        if (strategyFactory == null) {
+            throw new IllegalArgumentException("Invalid strategy factory or time unit");
+        }
+        return Math.max(1, strategyFactory.get().recoveryNanos());
+    }
+
+    /**
+     * @param strategyFactory Creates the rate limiting algorithm for a criterion the first time it is seen.
+     * @param idleTimeout     How long a criterion must go without requests before its limiter is evicted. Should be
+     *                        at least the time the strategy takes to recover its full capacity, or an evicted criterion
+     *                        gets more than its limit.
+     * @param unit            The unit of the idle timeout.
+     * @param maxKeys         The most criteria tracked before the ones due to expire soonest are evicted early.
+     */
+    public SimpleCriterionBasedConcurrentRateLimiter(Supplier<? extends RateLimitStrategy> strategyFactory,
+                                                     long idleTimeout, TimeUnit unit, int maxKeys) {
+        this(strategyFactory == null ? null : criterion -> strategyFactory.get(), idleTimeout, unit, maxKeys);
+    }
+
+    /**
+     * @param strategyFactory Creates the rate limiting algorithm of a criterion the first time it is seen, for
+     *                        strategies that depend on the criterion.
+     * @param idleTimeout     How long a criterion must go without requests before its limiter is evicted.
+     * @param unit            The unit of the idle timeout.
+     * @param maxKeys         The most criteria tracked before the ones due to expire soonest are evicted early.
+     */
+    @SuppressWarnings("unchecked")
+    public SimpleCriterionBasedConcurrentRateLimiter(Function<? super T, ? extends RateLimitStrategy> strategyFactory,
+                                                     long idleTimeout, TimeUnit unit, int maxKeys) {
+        if (strategyFactory == null || unit == null) {
+            throw new IllegalArgumentException("Invalid strategy factory or time unit");
+        }
+        if (idleTimeout <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("Idle timeout and maximum number of keys must be positive");
+        }
+        this.limiters = new CasBinConcurrentKVStore<>();
+        this.strategyFactory = strategyFactory;
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+        // The wheel spans two idle timeouts, so every expiry falls within one turn of it
+        this.tickNanos = Math.max(1, this.idleTimeoutNanos / (WHEEL_SLOTS / 2));
+        this.maxKeys = maxKeys;
+        this.epoch = System.nanoTime();
+        this.wheel = (ConcurrentLinkedQueue<Limiter<T>>[]) new ConcurrentLinkedQueue<?>[WHEEL_SLOTS];
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            this.wheel[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.sweepLock = new ReentrantLock();
+        this.sweepBuffer = new ArrayList<>();
+        this.nextSweep = this.tickNanos;
     }
 
     /**
@@ -39,16 +136,227 @@ public class SimpleCriterionBasedConcurrentRateLimiter<T> {
      * @return true if the request is allowed, false otherwise.
      */
     public boolean requestAccess(T accessCriteria) {
-        this.lock.lock();
+        return limiterFor(accessCriteria, System.nanoTime() - this.epoch).strategy.tryAcquire();
+    }
+
+    /**
+     * Waits as long as it takes for the permits.
+     *
+     * @param accessCriteria The criteria for the access request.
+     * @param permits        The number of permits, at most what the limit admits at once.
+     * @throws InterruptedException  if interrupted while waiting
+     * @throws IllegalStateException if the permits couldn't be reserved
+     */
+    public void acquire(T accessCriteria, int permits) throws InterruptedException {
+        SimpleGenericConcurrentRateLimiter.awaitNanos(
+                SimpleGenericConcurrentRateLimiter.reserved(reserve(accessCriteria, permits, Long.MAX_VALUE)));
+    }
+
+    /**
+     * Waits for the permits if they become available within the timeout, and doesn't take them otherwise.
+     *
+     * @param accessCriteria The criteria for the access request.
+     * @param permits        The number of permits, at most what the limit admits at once.
+     * @return true if the permits were acquired, false if they wouldn't be available in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean tryAcquire(T accessCriteria, int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        long wait = reserve(accessCriteria, permits, unit.toNanos(timeout));
+        if (wait < 0) {
+            return false;
+        }
+        SimpleGenericConcurrentRateLimiter.awaitNanos(wait);
+        return true;
+    }
+
+    /**
+     * Reserves the permits without blocking.
+     *
+     * @param accessCriteria The criteria for the access request.
+     * @param permits        The number of permits, at most what the limit admits at once.
+     * @return a future completed when the permits may be used
+     * @throws IllegalStateException if the permits couldn't be reserved
+     */
+    public CompletableFuture<Void> acquireAsync(T accessCriteria, int permits) {
+        return SimpleGenericConcurrentRateLimiter.completeAfter(
+                SimpleGenericConcurrentRateLimiter.reserved(reserve(accessCriteria, permits, Long.MAX_VALUE)));
+    }
+
+    /**
+     * @return the nanoseconds until the permits of the criterion may be used, or -1 if they weren't reserved
+     * @see RateLimitStrategy#reserve(int, long)
+     */
+    long reserve(T accessCriteria, int permits, long maxWaitNanos) {
+        long now = System.nanoTime() - this.epoch;
+        Limiter<T> limiter = limiterFor(accessCriteria, now);
+        long wait = limiter.strategy.reserve(permits, maxWaitNanos);
+        if (wait > 0) {
+            limiter.touch(now + wait, this.tickNanos);
+        }
+        return wait;
+    }
+
+    /**
+     * Gives back permits of the latest reservation of the criterion. Nothing to do if its limiter was evicted since.
+     *
+     * @see RateLimitStrategy#refund(int)
+     */
+    void refund(T accessCriteria, int permits) {
+        Limiter<T> limiter = this.limiters.getOrNull(accessCriteria);
+        if (limiter != null) {
+            limiter.strategy.refund(permits);
+        }
+    }
+
+    /**
+     * Finds or creates the limiter of the criterion, marks it used and runs the sweep if it is due.
+     */
+    private Limiter<T> limiterFor(T accessCriteria, long now) {
+        Limiter<T> limiter = this.limiters.getOrNull(accessCriteria);
+        if (limiter == null) {
+            limiter = register(accessCriteria, now);
+        } else {
+            limiter.touch(now, this.tickNanos);
+        }
+        if (now - this.nextSweep >= 0) {
+            sweep(now);
+        }
+        return limiter;
+    }
+
+    /**
+     * @return the number of criteria currently tracked
+     */
+    public long size() {
+        return this.limiters.size();
+    }
+
+    private Limiter<T> register(T accessCriteria, long now) {
+        Limiter<T> created = new Limiter<>(accessCriteria, this.strategyFactory.apply(accessCriteria), now);
+        Limiter<T> current = this.limiters.putIfAbsent(accessCriteria, created);
+        if (current != null) {
+            return current;
+        }
+        schedule(created);
+        if (this.limiters.size() > this.maxKeys) {
+            evictOverflow();
+        }
+        return created;
+    }
+
+    /**
+     * Puts the limiter in the slot of the tick after its expiry, so the sweep of that slot always finds it expired
+     * unless it was used in the meantime.
+     */
+    private void schedule(Limiter<T> limiter) {
+        long expiryTick = expiry(limiter) / this.tickNanos;
+        this.wheel[(int) ((expiryTick + 1) & (WHEEL_SLOTS - 1))].add(limiter);
+    }
+
+    private long expiry(Limiter<T> limiter) {
+        // The access time may be up to a tick stale, so allow for a tick more
+        return limiter.lastAccess + this.idleTimeoutNanos + this.tickNanos;
+    }
+
+    /**
+     * Runs the slots of the ticks that passed since the last sweep, evicting the limiters that expired and moving the
+     * others to the slot of their new expiry.
+     */
+    private void sweep(long now) {
+        if (!this.sweepLock.tryLock()) {
+            return;
+        }
         try {
-            if (!this.kvStore.containsKey(accessCriteria)) {
-                this.kvStore.put(accessCriteria, new SimpleGenericConcurrentRateLimiter<>(this.requestWindow,
-                        this.allowedNoOfRequests));
+            long nowTick = now / this.tickNanos;
+            for (long tick = Math.max(this.sweptTick + 1, nowTick - WHEEL_SLOTS + 1); tick <= nowTick; tick++) {
+                // Drain first, so limiters moved back into the same slot wait for its next turn
+                Limiter<T> limiter;
+                ConcurrentLinkedQueue<Limiter<T>> slot = this.wheel[(int) (tick & (WHEEL_SLOTS - 1))];
+                while ((limiter = slot.poll()) != null) {
+                    this.sweepBuffer.add(limiter);
+                }
+                for (Limiter<T> due : this.sweepBuffer) {
+                    if (now - expiry(due) >= 0) {
+                        this.limiters.remove(due.key, due);
+                    } else {
+                        schedule(due);
+                    }
+                }
+                this.sweepBuffer.clear();
+            }
+            this.sweptTick = nowTick;
+            this.nextSweep = (nowTick + 1) * this.tickNanos;
+        } finally {
+            this.sweepLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the limiters due to expire soonest until no more than {@code maxKeys} criteria are tracked. A slot also
+     * holds limiters that were used after they were put there; those are moved to the slot of their new expiry, and
+     * evicted only if the sweep gets there too. Whoever holds the sweep lock is already making room, so this gives up
+     * rather than waiting for it.
+     */
+    private void evictOverflow() {
+        if (!this.sweepLock.tryLock()) {
+            return;
+        }
+        try {
+            for (long tick = this.sweptTick + 1;
+                 tick <= this.sweptTick + WHEEL_SLOTS && this.limiters.size() > this.maxKeys; tick++) {
+                Limiter<T> limiter;
+                ConcurrentLinkedQueue<Limiter<T>> slot = this.wheel[(int) (tick & (WHEEL_SLOTS - 1))];
+                while (this.limiters.size() > this.maxKeys && (limiter = slot.poll()) != null) {
+                    // The tick whose slot the limiter belongs in now, as in schedule()
+                    long dueTick = expiry(limiter) / this.tickNanos + 1;
+                    if (dueTick <= tick) {
+                        this.limiters.remove(limiter.key, limiter);
+                    } else if (dueTick - tick < WHEEL_SLOTS) {
+                        schedule(limiter);
+                    } else {
+                        // Due a turn of the wheel or more later, which is this same slot
+                        this.sweepBuffer.add(limiter);
+                    }
+                }
+                slot.addAll(this.sweepBuffer);
+                this.sweepBuffer.clear();
+            }
+        } finally {
+            this.sweepLock.unlock();
+        }
+    }
+
+    /**
+     * The strategy of one criterion and the time (in nanoseconds since the limiter was created) it was last used, or
+     * its last reservation is due if that is later.
+     */
+    private static final class Limiter<T> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicLongFieldUpdater<Limiter> LAST_ACCESS =
+                AtomicLongFieldUpdater.newUpdater(Limiter.class, "lastAccess");
+
+        final T key;
+        final RateLimitStrategy strategy;
+        volatile long lastAccess;
+
+        Limiter(T key, RateLimitStrategy strategy, long lastAccess) {
+            this.key = key;
+            this.strategy = strategy;
+            this.lastAccess = lastAccess;
+        }
+
+        /**
+         * Moves the access time forward to {@code time}, if that is at least a tick later. Once per tick is enough for
+         * the wheel, and spares the cache line a write per request.
+         */
+        void touch(long time, long tickNanos) {
+            long current;
+            while (time - (current = this.lastAccess) >= tickNanos) {
+                if (LAST_ACCESS.compareAndSet(this, current, time)) {
+                    return;
+                }
             }
-        }finally {
-            this.lock.unlock();
         }
-        return this.kvStore.get(accessCriteria).requestAccess(accessCriteria);
     }
 
     // Define a task that requests access
@@ -107,6 +415,14 @@ public class SimpleCriterionBasedConcurrentRateLimiter<T> {
         }
 
         // Final output to check the last state
-        System.out.println("Rate limiter test completed.");
+        System.out.println("Rate limiter test completed, tracking " + rateLimiter.size() + " criteria.");
+
+        // A flood of one-off criteria stays within the key limit
+        SimpleCriterionBasedConcurrentRateLimiter<Integer> floodLimiter = new SimpleCriterionBasedConcurrentRateLimiter<>(
+                () -> RateLimitStrategy.gcra(requestWindow, allowedNoOfRequests), 10, TimeUnit.SECONDS, 10_000);
+        for (int client = 0; client < 1_000_000; client++) {
+            floodLimiter.requestAccess(client);
+        }
+        System.out.println("After 1000000 criteria, tracking " + floodLimiter.size() + " (at most 10000).");
     }
 }
@@ -1,36 +1,46 @@
 package dileepshah.dev.os.concurrency;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * SimpleConcurrentRateLimiter is a leaky bucket rate limiter implementation to control
- * the rate of access requests to a resource in a concurrent environment.
+ * SimpleConcurrentRateLimiter controls the rate of access requests to a resource in a concurrent environment. The
+ * algorithm is a pluggable {@link RateLimitStrategy}; by default it is an exact sliding log.
+ * <p>
+ * Besides the non-blocking {@link #requestAccess(Object)}, callers can wait for permits. The permits are reserved from
+ * the strategy up front, which queues waiters in FIFO order and tells each exactly when its turn comes, so a waiter
+ * parks once until then instead of polling. Reserved permits stay counted if the wait is interrupted or the future
+ * is cancelled.
  *
  * @param <T> The type of access criteria used for the rate limiting.
  */
 public class SimpleGenericConcurrentRateLimiter<T> {
-    private BlockingQueue<RequestData<T>> leakyBucket;
-    private long requestRange;
-    private long allowedNoOfRequests;
-    private ReadWriteLock readWriteLock;
+    private final RateLimitStrategy strategy;
 
     /**
-     * Constructs a SimpleConcurrentRateLimiter with a specified request range and allowed number of requests.
+     * Constructs a SimpleConcurrentRateLimiter with a specified request range and allowed number of requests, using
+     * the sliding log algorithm.
      *
      * @param requestRange       The time range (in milliseconds) within which a certain number of requests are allowed.
      * @param allowedNoOfRequests The maximum number of requests allowed within the specified time range.
      */
     public SimpleGenericConcurrentRateLimiter(long requestRange, long allowedNoOfRequests) {
-        this.leakyBucket = new LinkedBlockingDeque<>();
-        this.requestRange = requestRange;
-        this.allowedNoOfRequests = allowedNoOfRequests;
-        this.readWriteLock =  new ReentrantReadWriteLock();
+        this(RateLimitStrategy.slidingLog(requestRange, allowedNoOfRequests));
+    }
+
+    /**
+     * Constructs a SimpleConcurrentRateLimiter that admits requests according to the given strategy.
+     *
+     * @param strategy The rate limiting algorithm and its state.
+     */
+    public SimpleGenericConcurrentRateLimiter(RateLimitStrategy strategy) {
+        if (strategy == null) {
+            throw new IllegalArgumentException("Invalid strategy");
+        }
+        this.strategy = strategy;
     }
 
     /**
@@ -41,50 +51,85 @@ public class SimpleGenericConcurrentRateLimiter<T> {
      * @return true if the request is allowed, false otherwise.
      */
     public boolean requestAccess(T accessCriteria){
-        long requestTime = System.currentTimeMillis();
-        long oldestTime = requestTime - this.requestRange;
-        this.readWriteLock.writeLock().lock();
-        try {
+        return this.strategy.tryAcquire();
+    }
 
-            while (!this.leakyBucket.isEmpty() && this.leakyBucket.peek().timeStamp < oldestTime) {
-                this.leakyBucket.poll();
-            }
-            if(this.leakyBucket.size() < this.allowedNoOfRequests) {
-                this.leakyBucket.add(new RequestData<>(accessCriteria, requestTime));
-                return true;
-            }
+    /**
+     * Waits as long as it takes for the permits.
+     *
+     * @param accessCriteria The criteria for the access request.
+     * @param permits        The number of permits, at most what the limit admits at once.
+     * @throws InterruptedException  if interrupted while waiting
+     * @throws IllegalStateException if the permits couldn't be reserved
+     */
+    public void acquire(T accessCriteria, int permits) throws InterruptedException {
+        awaitNanos(reserved(this.strategy.reserve(permits, Long.MAX_VALUE)));
+    }
+
+    /**
+     * Waits for the permits if they become available within the timeout, and doesn't take them otherwise.
+     *
+     * @param accessCriteria The criteria for the access request.
+     * @param permits        The number of permits, at most what the limit admits at once.
+     * @return true if the permits were acquired, false if they wouldn't be available in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean tryAcquire(T accessCriteria, int permits, long timeout, TimeUnit unit) throws InterruptedException {
+        long wait = this.strategy.reserve(permits, unit.toNanos(timeout));
+        if (wait < 0) {
             return false;
         }
-        finally {
-            this.readWriteLock.writeLock().unlock();
-        }
+        awaitNanos(wait);
+        return true;
     }
 
+    /**
+     * Reserves the permits without blocking.
+     *
+     * @param accessCriteria The criteria for the access request.
+     * @param permits        The number of permits, at most what the limit admits at once.
+     * @return a future completed when the permits may be used
+     * @throws IllegalStateException if the permits couldn't be reserved
+     */
+    public CompletableFuture<Void> acquireAsync(T accessCriteria, int permits) {
+        return completeAfter(reserved(this.strategy.reserve(permits, Long.MAX_VALUE)));
+    }
 
     /**
-     * RequestData is a helper class to store information about each access request.
+     * Checks the result of a reservation made without a time limit, which a strategy can still turn down, e.g. a
+     * limit leased from elsewhere that has none left, so that the caller never goes ahead without the permits.
      *
-     * @param <T> The type of access criteria.
+     * @return the nanoseconds until the permits may be used
+     * @throws IllegalStateException if the permits weren't reserved
+     */
+    static long reserved(long wait) {
+        if (wait < 0) {
+            throw new IllegalStateException("The permits could not be reserved");
+        }
+        return wait;
+    }
+
+    /**
+     * Parks until the time is up rather than sleeping, since {@link Thread#sleep(long, int)} rounds up to milliseconds.
      */
-    static class RequestData<T> implements Comparable<RequestData<T>>{
-        T accessType;
-        long timeStamp;
-
-        /**
-         * Constructs a RequestData instance with the specified access type and timestamp.
-         *
-         * @param accessType The type of access criteria.
-         * @param timeStamp  The timestamp of the request.
-         */
-        public RequestData(T accessType, long timeStamp) {
-            this.accessType = accessType;
-            this.timeStamp = timeStamp;
+    static void awaitNanos(long nanos) throws InterruptedException {
+        long deadline = System.nanoTime() + nanos;
+        for (long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
         }
+    }
 
-        @Override
-        public int compareTo(RequestData<T> o) {
-            return Long.compare(this.timeStamp, o.timeStamp);
+    /**
+     * @return a future completed after the time is up, on the common pool so dependent stages don't hold up the timer
+     */
+    static CompletableFuture<Void> completeAfter(long nanos) {
+        if (nanos <= 0) {
+            return CompletableFuture.completedFuture(null);
         }
+        return CompletableFuture.runAsync(() -> { }, CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS));
     }
 
 
@@ -133,5 +178,19 @@ public class SimpleGenericConcurrentRateLimiter<T> {
 
         // Final output to check the last state
         System.out.println("Rate limiter test completed.");
+
+        // A batch job that runs at exactly the allowed rate: 5 requests, then one every 200 ms
+        SimpleGenericConcurrentRateLimiter<String> batchLimiter =
+                new SimpleGenericConcurrentRateLimiter<>(RateLimitStrategy.gcra(requestRange, allowedNoOfRequests));
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < 10; i++) {
+                batchLimiter.acquire("batch", 1);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("10 permits acquired in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+                + " ms (expected about 1000 ms)");
     }
 }
@@ -0,0 +1,98 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exact sliding log: admits a request if fewer than {@code allowedNoOfRequests} were admitted in the last
+ * {@code requestRange}.
+ * <p>
+ * Only the last {@code allowedNoOfRequests} admission times matter, so they are kept in a ring of that size rather
+ * than a queue: the slot about to be overwritten holds the oldest of them, and the request is admitted if that one has
+ * left the window. Memory is fixed at the limit and nothing is allocated per request.
+ * <p>
+ * A reservation writes its future admission times into the ring, never earlier than the newest one, so the ring
+ * stays in time order and whoever comes next queues behind it.
+ */
+final class SlidingLogRateLimitStrategy implements RateLimitStrategy {
+    private final long[] admissions;
+    private final long rangeNanos;
+    private final Lock lock;
+    private int next;
+    private int filled;
+
+    SlidingLogRateLimitStrategy(long requestRange, long allowedNoOfRequests) {
+        if (requestRange <= 0 || allowedNoOfRequests <= 0 || allowedNoOfRequests > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Invalid request range or allowed number of requests");
+        }
+        this.admissions = new long[(int) allowedNoOfRequests];
+        this.rangeNanos = TimeUnit.MILLISECONDS.toNanos(requestRange);
+        this.lock = new ReentrantLock();
+    }
+
+    @Override
+    public long reserve(int permits, long maxWaitNanos) {
+        int capacity = this.admissions.length;
+        if (permits <= 0 || permits > capacity) {
+            throw new IllegalArgumentException("Permits must be between 1 and " + capacity);
+        }
+        long now = System.nanoTime();
+        this.lock.lock();
+        try {
+            long admission = now;
+            if (this.filled > 0) {
+                long newest = this.admissions[(this.next + capacity - 1) % capacity];
+                admission = newest - admission > 0 ? newest : admission;
+            }
+            if (this.filled + permits > capacity) {
+                // The last of the admissions the permits overwrite must have left the window
+                long leaving = this.admissions[(this.next + permits - 1) % capacity] + this.rangeNanos;
+                admission = leaving - admission > 0 ? leaving : admission;
+            }
+            long wait = admission - now;
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            for (int i = 0; i < permits; i++) {
+                this.admissions[this.next] = admission;
+                this.next = this.next + 1 == capacity ? 0 : this.next + 1;
+            }
+            this.filled = Math.min(this.filled + permits, capacity);
+            return wait;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void refund(int permits) {
+        int capacity = this.admissions.length;
+        this.lock.lock();
+        try {
+            permits = Math.min(permits, this.filled);
+            this.next = (this.next + capacity - permits) % capacity;
+            if (this.filled < capacity) {
+                this.filled -= permits;
+                return;
+            }
+            // The admissions the reservation overwrote are gone, but they had left the window by its admission time
+            // and were no newer than the oldest admission left. The refunded slots get the earlier of those bounds, so
+            // the ring stays in order and they leave the window no later than the overwritten ones, nor sooner.
+            long admission = this.admissions[this.next];
+            long oldestLeft = this.admissions[(this.next + permits) % capacity];
+            long overwritten = admission - this.rangeNanos;
+            overwritten = oldestLeft - overwritten < 0 ? oldestLeft : overwritten;
+            for (int i = 0; i < permits; i++) {
+                this.admissions[(this.next + i) % capacity] = overwritten;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public long recoveryNanos() {
+        return this.rangeNanos;
+    }
+}
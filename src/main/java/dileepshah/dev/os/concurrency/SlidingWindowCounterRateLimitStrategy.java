@@ -0,0 +1,120 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Approximate sliding window built from two fixed windows: the count of the current window plus the count of the
+ * previous one, weighted by the share of it the sliding window still covers. Assumes requests were spread evenly over
+ * the previous window, so it can be off by a little either way when they weren't, in exchange for two counters per key.
+ * <p>
+ * A reservation that doesn't fit the current window is counted in the next one, which then becomes the current
+ * window ahead of the clock; requests arriving before it starts queue behind the reservation.
+ */
+final class SlidingWindowCounterRateLimitStrategy implements RateLimitStrategy {
+    private final long windowNanos;
+    private final long allowedNoOfRequests;
+    private final long epoch;
+    private final Lock lock;
+    private long currentWindow;
+    private long currentCount;
+    private long previousCount;
+    // The previous count a reservation replaced when it moved on to the next window, restored if it is refunded
+    private long displacedCount;
+
+    SlidingWindowCounterRateLimitStrategy(long requestRange, long allowedNoOfRequests) {
+        if (requestRange <= 0 || allowedNoOfRequests <= 0) {
+            throw new IllegalArgumentException("Invalid request range or allowed number of requests");
+        }
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(requestRange);
+        this.allowedNoOfRequests = allowedNoOfRequests;
+        this.epoch = System.nanoTime();
+        this.lock = new ReentrantLock();
+    }
+
+    @Override
+    public long reserve(int permits, long maxWaitNanos) {
+        if (permits <= 0 || permits > this.allowedNoOfRequests) {
+            throw new IllegalArgumentException("Permits must be between 1 and " + this.allowedNoOfRequests);
+        }
+        this.lock.lock();
+        try {
+            // Read under the lock, so no caller can come in with a time from before a window the lock holder moved to
+            long elapsed = System.nanoTime() - this.epoch;
+            long window = elapsed / this.windowNanos;
+            if (window > this.currentWindow) {
+                // Only the window right before the current one still overlaps the sliding window
+                this.previousCount = window == this.currentWindow + 1 ? this.currentCount : 0;
+                this.currentCount = 0;
+                this.currentWindow = window;
+            }
+            long start = this.currentWindow * this.windowNanos;
+            long admission = earliest(Math.max(elapsed, start), start, this.previousCount, this.currentCount, permits);
+            boolean nextWindow = admission < 0;
+            if (nextWindow) {
+                start += this.windowNanos;
+                admission = earliest(start, start, this.currentCount, 0, permits);
+            }
+            long wait = admission - elapsed;
+            if (wait > maxWaitNanos) {
+                return -1;
+            }
+            if (nextWindow) {
+                this.displacedCount = this.previousCount;
+                this.previousCount = this.currentCount;
+                this.currentCount = permits;
+                this.currentWindow++;
+            } else {
+                this.currentCount += permits;
+            }
+            return wait;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void refund(int permits) {
+        this.lock.lock();
+        try {
+            long fromCurrent = Math.min(permits, this.currentCount);
+            this.currentCount -= fromCurrent;
+            // A reservation that already rolled over into the previous window
+            this.previousCount = Math.max(0, this.previousCount - (permits - fromCurrent));
+            if (this.currentCount == 0 && this.currentWindow > (System.nanoTime() - this.epoch) / this.windowNanos) {
+                // Only a reservation moves the window ahead of the clock; with it gone, move back
+                this.currentWindow--;
+                this.currentCount = this.previousCount;
+                this.previousCount = this.displacedCount;
+                this.displacedCount = 0;
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the earliest time from {@code from} within the window starting at {@code start} at which the weighted
+     * count plus the permits fits the limit, or -1 if there is none in this window
+     */
+    private long earliest(long from, long start, long previous, long current, int permits) {
+        long room = this.allowedNoOfRequests - current - permits;
+        if (room < 0) {
+            return -1;
+        }
+        long admission = from;
+        if (previous > room) {
+            // The previous window's weight falls linearly from 1 to 0 across this one
+            long offset = (long) Math.ceil((double) this.windowNanos * (previous - room) / previous);
+            admission = Math.max(from, start + offset);
+        }
+        return admission < start + this.windowNanos ? admission : -1;
+    }
+
+    @Override
+    public long recoveryNanos() {
+        // A window's count weighs on the next window too
+        return 2 * this.windowNanos;
+    }
+}
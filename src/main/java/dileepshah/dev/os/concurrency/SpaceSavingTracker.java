@@ -0,0 +1,87 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Space-Saving heavy hitter tracker: keeps at most {@code capacity} counters, and a key that isn't tracked takes over
+ * the smallest counter, inheriting its count as its error bound. Any key seen more than {@code total / capacity} times
+ * is guaranteed to be tracked, and each count overestimates the true one by at most its error.
+ * <p>
+ * Offers come from sampled hot paths, so they never wait: a sample that finds the tracker busy is dropped, which only
+ * thins the sample.
+ */
+final class SpaceSavingTracker<K> {
+    private final int capacity;
+    private final Map<K, Counter> counters;
+    private final ReentrantLock lock;
+
+    SpaceSavingTracker(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.counters = new HashMap<>();
+        this.lock = new ReentrantLock();
+    }
+
+    void offer(K key) {
+        if (!this.lock.tryLock()) {
+            return;
+        }
+        try {
+            Counter counter = this.counters.get(key);
+            if (counter != null) {
+                counter.count++;
+            } else if (this.counters.size() < this.capacity) {
+                this.counters.put(key, new Counter(key, 1, 0));
+            } else {
+                // Linear scan: capacity is small and offers are sampled
+                Counter smallest = null;
+                for (Counter candidate : this.counters.values()) {
+                    if (smallest == null || candidate.count < smallest.count) {
+                        smallest = candidate;
+                    }
+                }
+                this.counters.remove(smallest.key);
+                this.counters.put(key, new Counter(key, smallest.count + 1, smallest.count));
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @param scale multiplies the counts, to turn sampled counts back into estimated accesses
+     * @return the tracked keys, most frequent first
+     */
+    List<KVStoreStats.HotKey<K>> top(long scale) {
+        List<KVStoreStats.HotKey<K>> top = new ArrayList<>();
+        this.lock.lock();
+        try {
+            for (Counter counter : this.counters.values()) {
+                top.add(new KVStoreStats.HotKey<>(counter.key, counter.count * scale, counter.error * scale));
+            }
+        } finally {
+            this.lock.unlock();
+        }
+        top.sort(Comparator.comparingLong((KVStoreStats.HotKey<K> hotKey) -> hotKey.estimatedCount()).reversed());
+        return top;
+    }
+
+    private final class Counter {
+        private final K key;
+        private long count;
+        private final long error;
+
+        Counter(K key, long count, long error) {
+            this.key = key;
+            this.count = count;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package dileepshah.dev.os.concurrency;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TokenBucketRateLimiter is a lock-free token bucket with the same {@code requestAccess} contract as
+ * {@link SimpleGenericConcurrentRateLimiter}, in constant memory. It is also a {@link RateLimitStrategy}, so either
+ * limiter can run on it.
+ * <p>
+ * The bucket holds up to {@code burstCapacity} tokens and gains one every {@code requestRange / allowedNoOfRequests}
+ * milliseconds; each admitted request takes one. The whole state, the token count and the time of the last refill,
+ * is packed into a single {@link AtomicLong} and updated with a compare-and-set loop, so concurrent callers never block
+ * and nothing is allocated per request:
+ * <pre>
+ *  63          44 43                                   0
+ * [   tokens    ][ last refill, ns since creation mod 2^44 ]
+ * </pre>
+ * A refill only moves the refill time forward by the whole tokens it adds, so fractions of a token carry over to the
+ * next request. The token count is signed: a reservation takes more tokens than there are and leaves the bucket in
+ * debt, which the refills pay off before anyone else gets a token. Every attempt reads the clock after the state, so
+ * the last refill is never ahead of the time it is compared with, however long a caller stalls. The refill time wraps
+ * after about 4.9 hours; an idle gap that long can be mistaken for a shorter one, which can only make the bucket start
+ * emptier than it should, never admit more.
+ *
+ * @param <T> The type of access criteria used for the rate limiting.
+ */
+public class TokenBucketRateLimiter<T> implements RateLimitStrategy {
+    private static final int TIME_BITS = 44;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+    private static final long MAX_TOKENS = (1L << (63 - TIME_BITS)) - 1;
+
+    private final AtomicLong state;
+    private final long nanosPerToken;
+    private final long burstCapacity;
+    private final long epoch;
+
+    /**
+     * Constructs a TokenBucketRateLimiter that allows bursts of up to {@code allowedNoOfRequests}.
+     *
+     * @param requestRange        The time range (in milliseconds) within which a certain number of requests are allowed.
+     * @param allowedNoOfRequests The maximum number of requests allowed within the specified time range.
+     */
+    public TokenBucketRateLimiter(long requestRange, long allowedNoOfRequests) {
+        this(requestRange, allowedNoOfRequests, allowedNoOfRequests);
+    }
+
+    /**
+     * @param requestRange        The time range (in milliseconds) within which a certain number of requests are allowed.
+     * @param allowedNoOfRequests The number of requests the bucket refills within the time range.
+     * @param burstCapacity       The most requests admitted back to back after the bucket had time to fill up.
+     */
+    public TokenBucketRateLimiter(long requestRange, long allowedNoOfRequests, long burstCapacity) {
+        if (requestRange <= 0 || allowedNoOfRequests <= 0) {
+            throw new IllegalArgumentException("Request range and allowed number of requests must be positive");
+        }
+        if (burstCapacity <= 0 || burstCapacity > MAX_TOKENS) {
+            throw new IllegalArgumentException("Burst capacity must be between 1 and " + MAX_TOKENS);
+        }
+        this.nanosPerToken = Math.max(1, TimeUnit.MILLISECONDS.toNanos(requestRange) / allowedNoOfRequests);
+        this.burstCapacity = burstCapacity;
+        this.epoch = System.nanoTime();
+        this.state = new AtomicLong(pack(burstCapacity, 0));
+    }
+
+    /**
+     * Requests access based on the specified access criteria. Takes a token if there is one.
+     *
+     * @param accessCriteria The criteria for the access request.
+     * @return true if the request is allowed, false otherwise.
+     */
+    public boolean requestAccess(T accessCriteria) {
+        return tryAcquire();
+    }
+
+    @Override
+    public boolean tryAcquire() {
+        for (;;) {
+            long current = this.state.get();
+            long now = now();
+            long refilled = refill(current, now);
+            if (refilled >> TIME_BITS <= 0) {
+                // Nothing to take, and the refill time only matters once there is
+                return false;
+            }
+            if (this.state.compareAndSet(current, refilled - (1L << TIME_BITS))) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public long reserve(int permits, long maxWaitNanos) {
+        if (permits <= 0 || permits > this.burstCapacity) {
+            throw new IllegalArgumentException("Permits must be between 1 and " + this.burstCapacity);
+        }
+        for (;;) {
+            long current = this.state.get();
+            long now = now();
+            long refilled = refill(current, now);
+            long remaining = (refilled >> TIME_BITS) - permits;
+            long wait = 0;
+            if (remaining < 0) {
+                // The debt is paid off a token per interval, counted from the last refill
+                long sinceRefill = (now - (refilled & TIME_MASK)) & TIME_MASK;
+                wait = -remaining > Long.MAX_VALUE / this.nanosPerToken
+                        ? Long.MAX_VALUE : Math.max(0, -remaining * this.nanosPerToken - sinceRefill);
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                if (remaining < -MAX_TOKENS) {
+                    // The caller would wait, but the debt doesn't fit the state
+                    throw new IllegalStateException("More than " + MAX_TOKENS + " permits are reserved ahead");
+                }
+            }
+            if (this.state.compareAndSet(current, refilled - ((long) permits << TIME_BITS))) {
+                return wait;
+            }
+        }
+    }
+
+    @Override
+    public void refund(int permits) {
+        for (;;) {
+            long current = this.state.get();
+            long now = now();
+            long refilled = refill(current, now);
+            long tokens = Math.min(this.burstCapacity, (refilled >> TIME_BITS) + permits);
+            if (this.state.compareAndSet(current, pack(tokens, refilled & TIME_MASK))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public long recoveryNanos() {
+        return this.burstCapacity * this.nanosPerToken;
+    }
+
+    /**
+     * @return the tokens available right now, i.e. how many requests would be admitted back to back
+     */
+    public long availableTokens() {
+        long current = this.state.get();
+        return Math.max(0, refill(current, now()) >> TIME_BITS);
+    }
+
+    /**
+     * @return the time since creation, on the wrapping clock of the refill time. Read it after the state it is compared
+     * with.
+     */
+    private long now() {
+        return (System.nanoTime() - this.epoch) & TIME_MASK;
+    }
+
+    /**
+     * @return the state with the tokens earned since the last refill added
+     */
+    private long refill(long state, long now) {
+        long tokens = state >> TIME_BITS;
+        long lastRefill = state & TIME_MASK;
+        long elapsed = (now - lastRefill) & TIME_MASK;
+        long earned = elapsed / this.nanosPerToken;
+        if (earned == 0) {
+            return state;
+        }
+        if (earned >= this.burstCapacity - tokens) {
+            return pack(this.burstCapacity, now);
+        }
+        return pack(tokens + earned, lastRefill + earned * this.nanosPerToken);
+    }
+
+    private static long pack(long tokens, long refillTime) {
+        return (tokens << TIME_BITS) | (refillTime & TIME_MASK);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // 1000 requests per second with bursts of up to 100
+        TokenBucketRateLimiter<String> rateLimiter = new TokenBucketRateLimiter<>(1000, 1000, 100);
+        AtomicInteger allowed = new AtomicInteger();
+        AtomicInteger denied = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        long start = System.nanoTime();
+        for (int t = 0; t < 8; t++) {
+            executor.execute(() -> {
+                while (System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2)) {
+                    if (rateLimiter.requestAccess(Thread.currentThread().getName())) {
+                        allowed.incrementAndGet();
+                    } else {
+                        denied.incrementAndGet();
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        if (!executor.awaitTermination(8000, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+
+        // Expect about the burst plus two seconds of refills: 100 + 2000
+        System.out.println("Allowed " + allowed.get() + ", denied " + denied.get());
+    }
+}